@@ -0,0 +1,218 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.servicemix.specs.locator.Activator;
+import org.apache.servicemix.specs.locator.OsgiLocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+
+/**
+ * Bundle events handled by a started {@link Activator}, as when a provider
+ * bundle is refreshed on a live container: the RESOLVED event scans the
+ * bundle and registers its providers, the UNRESOLVED event unregisters them.
+ * The bundles and their service files are simulated in memory, so this
+ * measures the activator and registry work rather than the framework.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ActivatorBenchmark {
+
+    static final String FACTORY_ID = "org.apache.servicemix.specs.benchmarks.Activator";
+
+    @Param({ "1", "10", "50" })
+    public int services;
+
+    /**
+     * Whether the scan index is enabled, in which case unchanged bundles are
+     * not read again, otherwise service files are listed and read on first use.
+     */
+    @Param({ "true", "false" })
+    public boolean index;
+
+    private File dataDir;
+    private BundleContext context;
+    private Activator activator;
+    private BundleEvent resolved;
+    private BundleEvent unresolved;
+
+    @Setup
+    public void setup() throws Exception {
+        System.setProperty(OsgiLocator.TIMEOUT, "0");
+        System.setProperty(Activator.SCAN_INDEX, String.valueOf(index));
+        OsgiLocator.refreshConfiguration();
+        dataDir = File.createTempFile("activator", "");
+        dataDir.delete();
+        dataDir.mkdirs();
+        Bundle spec = bundle(1, 0);
+        Bundle provider = bundle(2, services);
+        context = context(spec, provider, dataDir);
+        activator = new Activator();
+        activator.start(context);
+        resolved = new BundleEvent(BundleEvent.RESOLVED, provider);
+        unresolved = new BundleEvent(BundleEvent.UNRESOLVED, provider);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        activator.stop(context);
+        System.clearProperty(Activator.SCAN_INDEX);
+        File[] files = dataDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dataDir.delete();
+    }
+
+    @Benchmark
+    public void resolveUnresolve() {
+        activator.bundleChanged(resolved);
+        activator.bundleChanged(unresolved);
+    }
+
+    @Benchmark
+    public Class<?> resolveLocateUnresolve() {
+        activator.bundleChanged(resolved);
+        Class<?> c = OsgiLocator.locate(Object.class, FACTORY_ID + 0);
+        activator.bundleChanged(unresolved);
+        return c;
+    }
+
+    /**
+     * Resolved bundle with the given number of service files, all listing
+     * the {@link Providers.Primary} provider.
+     */
+    private static Bundle bundle(final long id, final int services) throws MalformedURLException {
+        final Hashtable<String, String> headers = new Hashtable<String, String>();
+        headers.put("Bundle-SymbolicName", "benchmark" + id);
+        final List<URL> entries = new ArrayList<URL>();
+        URLStreamHandler handler = new URLStreamHandler() {
+            protected URLConnection openConnection(URL u) {
+                return new URLConnection(u) {
+                    public void connect() {
+                    }
+
+                    public InputStream getInputStream() throws IOException {
+                        return new ByteArrayInputStream((Providers.Primary.class.getName() + "\n").getBytes("UTF-8"));
+                    }
+                };
+            }
+        };
+        for (int i = 0; i < services; i++) {
+            entries.add(new URL("bundle", String.valueOf(id), -1, "/META-INF/services/" + FACTORY_ID + i, handler));
+        }
+        return proxy(Bundle.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if ("getBundleId".equals(name)) {
+                    return id;
+                } else if ("getState".equals(name)) {
+                    return Bundle.RESOLVED;
+                } else if ("getLastModified".equals(name)) {
+                    return 1L;
+                } else if ("getSymbolicName".equals(name)) {
+                    return headers.get("Bundle-SymbolicName");
+                } else if ("getHeaders".equals(name)) {
+                    return headers;
+                } else if ("findEntries".equals(name)) {
+                    return Collections.enumeration(entries);
+                } else if ("loadClass".equals(name)) {
+                    return ActivatorBenchmark.class.getClassLoader().loadClass((String) args[0]);
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+    }
+
+    private static BundleContext context(final Bundle spec, final Bundle provider, final File dataDir) {
+        return proxy(BundleContext.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if ("getBundle".equals(name)) {
+                    return spec;
+                } else if ("getBundles".equals(name)) {
+                    return new Bundle[] { spec, provider };
+                } else if ("getDataFile".equals(name)) {
+                    return new File(dataDir, (String) args[0]);
+                } else if ("getProperty".equals(name)) {
+                    return System.getProperty((String) args[0]);
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(ActivatorBenchmark.class.getClassLoader(), new Class[] { type }, handler));
+    }
+
+    private static Object defaultValue(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        Class<?> type = method.getReturnType();
+        if ("equals".equals(name)) {
+            return proxy == args[0];
+        } else if ("hashCode".equals(name)) {
+            return System.identityHashCode(proxy);
+        } else if ("toString".equals(name)) {
+            return method.getDeclaringClass().getSimpleName() + "@" + System.identityHashCode(proxy);
+        } else if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.servicemix.specs.locator.OsgiLocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups running while another thread keeps registering and unregistering
+ * a provider for the same factory id, as happens when bundles are refreshed
+ * on a live container.  Every registration invalidates the cached
+ * resolutions, so this measures both the writer cost and the slow path of
+ * the readers.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChurnBenchmark {
+
+    static final String FACTORY_ID = "org.apache.servicemix.specs.benchmarks.Churn";
+
+    @Param({ "1", "10", "100" })
+    public int candidates;
+
+    private List<Callable<Class>> providers;
+    private final Callable<Class> churned = new Providers.Provider(Providers.Primary.class);
+
+    @Setup
+    public void setup() {
+        System.setProperty(OsgiLocator.TIMEOUT, "0");
+        OsgiLocator.refreshConfiguration();
+        providers = Providers.register(FACTORY_ID, candidates);
+    }
+
+    @TearDown
+    public void tearDown() {
+        OsgiLocator.unregister(FACTORY_ID, churned);
+        Providers.unregister(FACTORY_ID, providers);
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(3)
+    public Class<?> locate() {
+        return OsgiLocator.locate(Object.class, FACTORY_ID);
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public void registerUnregister() {
+        OsgiLocator.register(FACTORY_ID, churned);
+        OsgiLocator.unregister(FACTORY_ID, churned);
+    }
+
+}
@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.servicemix.specs.locator.OsgiLocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Steady state lookup throughput of {@link OsgiLocator} with a varying number
+ * of candidates registered for a single factory id.
+ *
+ * <code>locate</code> is the common case of a finder asking for the newest
+ * provider, <code>locateOverridden</code> asks for the oldest one through the
+ * system property override and <code>locateAll</code> returns all the
+ * candidates, computed on the first call only.  <code>locateAndLocateAll</code>
+ * mixes both lookups, as the original contention benchmark of the locator
+ * did.  Use <code>-t</code> or {@link ThreadScaling} to vary the number of
+ * threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocateBenchmark {
+
+    static final String FACTORY_ID = "org.apache.servicemix.specs.benchmarks.Locate";
+    static final String OVERRIDDEN_ID = "org.apache.servicemix.specs.benchmarks.Overridden";
+
+    @Param({ "1", "10", "100" })
+    public int candidates;
+
+    private List<Callable<Class>> providers;
+    private List<Callable<Class>> overridden;
+
+    @Setup
+    public void setup() {
+        System.setProperty(OsgiLocator.TIMEOUT, "0");
+        System.setProperty(OVERRIDDEN_ID, Providers.Fallback.class.getName());
+        OsgiLocator.refreshConfiguration();
+        providers = Providers.register(FACTORY_ID, candidates);
+        overridden = Providers.register(OVERRIDDEN_ID, candidates);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Providers.unregister(FACTORY_ID, providers);
+        Providers.unregister(OVERRIDDEN_ID, overridden);
+        System.clearProperty(OVERRIDDEN_ID);
+        OsgiLocator.refreshConfiguration();
+    }
+
+    @Benchmark
+    public Class<?> locate() {
+        return OsgiLocator.locate(Object.class, FACTORY_ID);
+    }
+
+    @Benchmark
+    public Class<?> locateOverridden() {
+        return OsgiLocator.locate(Object.class, OVERRIDDEN_ID);
+    }
+
+    @Benchmark
+    public List<Class<?>> locateAll() {
+        return (List) OsgiLocator.locateAll(Object.class, FACTORY_ID);
+    }
+
+    @Benchmark
+    public int locateAndLocateAll() {
+        Class<?> c = OsgiLocator.locate(Object.class, FACTORY_ID);
+        return OsgiLocator.locateAll(Object.class, FACTORY_ID).size() + (c != null ? 1 : 0);
+    }
+
+}
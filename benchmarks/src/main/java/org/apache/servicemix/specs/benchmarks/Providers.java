@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.servicemix.specs.locator.OsgiLocator;
+
+/**
+ * Provider classes and callables registered by the benchmarks in place of
+ * real spec implementation bundles.
+ */
+final class Providers {
+
+    public static class Primary {
+    }
+
+    public static class Fallback {
+    }
+
+    /**
+     * Callable returning a fixed provider class, as the activator's
+     * BundleFactoryLoader does once the class has been loaded.
+     */
+    static class Provider implements Callable<Class> {
+        private final Class clazz;
+
+        Provider(Class clazz) {
+            this.clazz = clazz;
+        }
+
+        public Class call() throws Exception {
+            return clazz;
+        }
+    }
+
+    private Providers() {
+    }
+
+    /**
+     * Register <code>count</code> candidates for the given factory id.  The
+     * first one registered, and therefore the last one scanned, returns
+     * {@link Fallback} so a lookup overridden to that class walks the whole list.
+     */
+    static List<Callable<Class>> register(String factoryId, int count) {
+        List<Callable<Class>> providers = new ArrayList<Callable<Class>>(count);
+        for (int i = 0; i < count; i++) {
+            Callable<Class> provider = new Provider(i == 0 ? Fallback.class : Primary.class);
+            OsgiLocator.register(factoryId, provider);
+            providers.add(provider);
+        }
+        return providers;
+    }
+
+    static void unregister(String factoryId, List<Callable<Class>> providers) {
+        for (Callable<Class> provider : providers) {
+            OsgiLocator.unregister(factoryId, provider);
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.plugin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.servicemix.specs.locator.ProviderIndex;
+
+/**
+ * Merge the <code>META-INF/services</code> files of the project and of its
+ * runtime dependencies into a single {@link ProviderIndex}, so that the spec
+ * finders do not have to look for service files in each jar of the class
+ * path at runtime.
+ *
+ * @goal index
+ * @phase process-classes
+ * @requiresDependencyResolution runtime
+ * @threadSafe
+ */
+public class IndexMojo extends AbstractMojo {
+
+    private static final String SERVICES = "META-INF/services/";
+
+    /**
+     * The runtime class path of the project, in class path order.
+     *
+     * @parameter expression="${project.runtimeClasspathElements}"
+     * @required
+     * @readonly
+     */
+    private List<String> classpathElements;
+
+    /**
+     * Directory in which the index is written.
+     *
+     * @parameter expression="${project.build.outputDirectory}"
+     * @required
+     */
+    private File outputDirectory;
+
+    public void execute() throws MojoExecutionException {
+        ProviderIndex index = new ProviderIndex();
+        for (String element : classpathElements) {
+            File file = new File(element);
+            try {
+                if (file.isDirectory()) {
+                    indexDirectory(new File(file, SERVICES), index);
+                } else if (file.isFile()) {
+                    indexJar(file, index);
+                }
+            } catch (IOException e) {
+                throw new MojoExecutionException("Unable to read the service files of " + file, e);
+            }
+        }
+        File target = new File(outputDirectory, ProviderIndex.RESOURCE);
+        target.getParentFile().mkdirs();
+        try {
+            OutputStream os = new FileOutputStream(target);
+            try {
+                index.write(os);
+            } finally {
+                os.close();
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to write " + target, e);
+        }
+        getLog().info("Provider index written to " + target);
+    }
+
+    private void indexDirectory(File dir, ProviderIndex index) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isFile()) {
+                InputStream is = new FileInputStream(file);
+                try {
+                    readServiceFile(file.getName(), is, index);
+                } finally {
+                    is.close();
+                }
+            }
+        }
+    }
+
+    private void indexJar(File file, ProviderIndex index) throws IOException {
+        JarFile jar;
+        try {
+            jar = new JarFile(file);
+        } catch (IOException e) {
+            getLog().debug("Skipping " + file + ": " + e);
+            return;
+        }
+        try {
+            for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements();) {
+                JarEntry entry = e.nextElement();
+                String name = entry.getName();
+                if (entry.isDirectory() || !name.startsWith(SERVICES) || name.indexOf('/', SERVICES.length()) >= 0) {
+                    continue;
+                }
+                InputStream is = jar.getInputStream(entry);
+                try {
+                    readServiceFile(name.substring(SERVICES.length()), is, index);
+                } finally {
+                    is.close();
+                }
+            }
+        } finally {
+            jar.close();
+        }
+    }
+
+    private void readServiceFile(String factoryId, InputStream is, ProviderIndex index) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        String line;
+        while ((line = br.readLine()) != null) {
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.length() > 0) {
+                index.add(factoryId, line);
+            }
+        }
+    }
+
+}
@@ -97,10 +97,11 @@ public class Persistence {
         }
          
         //If we are deployed into an OSGi environment, leverage it
-        Class<? extends PersistenceProvider> providerClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(PersistenceProvider.class);
+        Class<? extends PersistenceProvider> providerClass = org.apache.servicemix.specs.locator.OsgiLocator.isActive()
+                ? org.apache.servicemix.specs.locator.OsgiLocator.locate(PersistenceProvider.class) : null;
         if (providerClass != null) {
             try {
-                PersistenceProvider provider = providerClass.newInstance();
+                PersistenceProvider provider = org.apache.servicemix.specs.locator.Instantiator.newInstance(providerClass);
                 return provider.createEntityManagerFactory(persistenceUnitName,
                     properties);
             }
@@ -179,8 +180,7 @@ public class Persistence {
         }
 
         try {
-            PersistenceProvider provider = (PersistenceProvider) providerClass
-                .newInstance();
+            PersistenceProvider provider = (PersistenceProvider) org.apache.servicemix.specs.locator.Instantiator.newInstance(providerClass);
             return provider.createEntityManagerFactory(persistenceUnitName,
                     properties);
         }
@@ -26,7 +26,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
-import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.net.InetAddress;
 import java.net.URL;
@@ -211,10 +210,11 @@ public final class Session {
      */
     public Provider getProvider(String protocol) throws NoSuchProviderException {
     	//If we are deployed into an OSGi environment, leverage it
-        Class<? extends Provider> providerClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(Provider.class, protocol);
+        Class<? extends Provider> providerClass = org.apache.servicemix.specs.locator.OsgiLocator.isActive()
+                ? org.apache.servicemix.specs.locator.OsgiLocator.locate(Provider.class, protocol) : null;
         if (providerClass != null) {
             try {
-				return (Provider) providerClass.newInstance();
+				return (Provider) org.apache.servicemix.specs.locator.Instantiator.newInstance(providerClass);
 			} catch (InstantiationException e) {
 				throw new NoSuchProviderException(e.getMessage());
 			} catch (IllegalAccessException e) {
@@ -492,11 +492,11 @@ public final class Session {
             }
             
             //If we are deployed into an OSGi environment, leverage it
-            Class<? extends Service> providerClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(Service.class, provider.getClassName());
+            Class<? extends Service> providerClass = org.apache.servicemix.specs.locator.OsgiLocator.isActive()
+                    ? org.apache.servicemix.specs.locator.OsgiLocator.locate(Service.class, provider.getClassName()) : null;
             if (providerClass != null) {
                 try {
-                	Constructor ctr = providerClass.getConstructor(PARAM_TYPES);
-                    return (Service) ctr.newInstance(this, name);
+                    return (Service) org.apache.servicemix.specs.locator.Instantiator.newInstance(providerClass, PARAM_TYPES, this, name);
     			} catch (InstantiationException e) {
     				throw new NoSuchProviderException(e.getMessage());
     			} catch (IllegalAccessException e) {
@@ -506,8 +506,7 @@ public final class Session {
             
             ClassLoader cl = getClassLoader();
             Class clazz = cl.loadClass(provider.getClassName());
-            Constructor ctr = clazz.getConstructor(PARAM_TYPES);
-            return (Service) ctr.newInstance(this, name);
+            return (Service) org.apache.servicemix.specs.locator.Instantiator.newInstance(clazz, PARAM_TYPES, this, name);
         } catch (ClassNotFoundException e) {
             throw (NoSuchProviderException) new NoSuchProviderException("Unable to load class for provider: " + provider).initCause(e);
         } catch (NoSuchMethodException e) {
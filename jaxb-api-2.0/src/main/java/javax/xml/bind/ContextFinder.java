@@ -149,12 +149,14 @@ class ContextFinder {
 
     private static Class loadSpi(String className, ClassLoader classLoader) throws JAXBException {
         Class spiClass;
-        try {
-            spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(JAXBContext.class);
-            if (spiClass != null) {
-                return spiClass;
+        if (org.apache.servicemix.specs.locator.OsgiLocator.isActive()) {
+            try {
+                spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(JAXBContext.class);
+                if (spiClass != null) {
+                    return spiClass;
+                }
+            } catch (Throwable t) {
             }
-        } catch (Throwable t) {
         }
         try {
             if (classLoader != null) {
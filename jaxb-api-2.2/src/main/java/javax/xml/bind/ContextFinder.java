@@ -485,12 +485,14 @@ class ContextFinder {
      */
     private static Class safeLoadClass(String className, ClassLoader classLoader) throws ClassNotFoundException {
        // using Osig locator to load the spi class 
-       try {
-           Class spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(JAXBContext.class);
-           if (spiClass != null) {
-               return spiClass;
+       if (org.apache.servicemix.specs.locator.OsgiLocator.isActive()) {
+           try {
+               Class spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(JAXBContext.class);
+               if (spiClass != null) {
+                   return spiClass;
+               }
+           } catch (Throwable t) {
            }
-       } catch (Throwable t) {
        }
        logger.fine("Trying to load "+className);
        try {
@@ -19,13 +19,6 @@
 
 package javax.xml.transform;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.Properties;
-
 /**
  * This class is duplicated for each JAXP subpackage so keep it in
  * sync.  It is package private.
@@ -42,8 +35,12 @@ final class FactoryFinder {
     /** Temp debug code - this will be removed after we test everything
      */
     private static boolean debug = false;
-    static Properties cacheProps= new Properties();
-    static boolean firstTime = true;
+
+    private static final org.apache.servicemix.specs.locator.ProviderResolver resolver =
+        new org.apache.servicemix.specs.locator.ProviderResolver(
+            org.apache.servicemix.specs.locator.ProviderResolver.SYSTEM_PROPERTY,
+            org.apache.servicemix.specs.locator.ProviderResolver.propertiesFile("jaxp.properties"),
+            org.apache.servicemix.specs.locator.ProviderResolver.services(FactoryFinder.class.getClassLoader()));
     
     /**
      * Default columns per line.
@@ -116,7 +113,7 @@ final class FactoryFinder {
                 }
             }
                         
-            Object instance = providerClass.newInstance();
+            Object instance = org.apache.servicemix.specs.locator.Instantiator.newInstance(providerClass);
             if (debug) dPrint("created new instance of " + providerClass +
                    " using ClassLoader: " + cl);
             return instance;
@@ -159,166 +156,38 @@ final class FactoryFinder {
 
         if (debug) dPrint("find factoryId =" + factoryId);
         
-        try {
-            // If we are deployed into an OSGi environment, leverage it
-            Class factoryClass = FactoryFinder.class.getClassLoader().loadClass(factoryId);
-            Class spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(factoryClass, factoryId);
-            if (spiClass != null) {
-                return spiClass.newInstance();
-            }
-        } catch (Throwable e) {
-        }
-
-        // Use the system property first
-        try {
-            String systemProp = SecuritySupport.getSystemProperty(factoryId);
-            if( systemProp!=null) {                
-                if (debug) dPrint("found system property, value=" + systemProp);
-                return newInstance(systemProp, classLoader, true );
-            }
-        } catch (SecurityException se) {
-            //if first option fails due to any reason we should try next option in the
-            //look up algorithm.
-        }
-
-        // try to read from $java.home/lib/jaxp.properties
-        try {
-            String javah = SecuritySupport.getSystemProperty("java.home");
-            String configFile = javah + File.separator +
-                "lib" + File.separator + "jaxp.properties";
-            String factoryClassName = null;
-            if(firstTime){
-                synchronized(cacheProps){
-                    if(firstTime){
-                        File f=new File( configFile );
-                        firstTime = false;
-                        if(SecuritySupport.doesFileExist(f)){
-                            if (debug) dPrint("Read properties file "+f);
-                            //cacheProps.load( new FileInputStream(f));
-                            cacheProps.load(SecuritySupport.getFileInputStream(f));
-                        }
-                    }
+        if (org.apache.servicemix.specs.locator.OsgiLocator.isActive()) {
+            try {
+                // If we are deployed into an OSGi environment, leverage it
+                Class spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(factoryId, FactoryFinder.class.getClassLoader());
+                if (spiClass != null) {
+                    return org.apache.servicemix.specs.locator.Instantiator.newInstance(spiClass);
                 }
+            } catch (Throwable e) {
             }
-            factoryClassName = cacheProps.getProperty(factoryId);            
-
-            if(factoryClassName != null){
-                if (debug) dPrint("found in $java.home/jaxp.properties, value=" + factoryClassName);
-                return newInstance(factoryClassName, classLoader, true);
-            }
-        } catch(Exception ex ) {
-            if( debug ) ex.printStackTrace();
         }
 
-        // Try Jar Service Provider Mechanism
-        Object provider = findJarServiceProvider(factoryId);
+        // Use the system property, $java.home/lib/jaxp.properties and the Jar
+        // Service Provider Mechanism, in that order
+        org.apache.servicemix.specs.locator.ProviderResolver.Provider provider = resolver.resolve(factoryId, classLoader);
         if (provider != null) {
-            return provider;
+            if (debug) dPrint("found " + provider);
+            // Providers found in a service file are loaded with the ClassLoader of
+            // the resource only, never with a fallback ClassLoader
+            return newInstance(provider.getClassName(), provider.getClassLoader(),
+                               provider.getSource() != org.apache.servicemix.specs.locator.ResolutionSource.SERVICES);
         }
+
         if (fallbackClassName == null) {
             throw new ConfigurationError(
                 "Provider for " + factoryId + " cannot be found", null);
         }
 
         if (debug) dPrint("loaded from fallback value: " + fallbackClassName);
+        org.apache.servicemix.specs.locator.LocatorStatistics.recordResolution(factoryId, org.apache.servicemix.specs.locator.ResolutionSource.FALLBACK);
         return newInstance(fallbackClassName, classLoader, true);
     }
     
-    /*
-     * Try to find provider using Jar Service Provider Mechanism
-     *
-     * @return instance of provider class if found or null
-     */
-    private static Object findJarServiceProvider(String factoryId)
-        throws ConfigurationError
-    {
-
-        String serviceId = "META-INF/services/" + factoryId;
-        InputStream is = null;
-
-        // First try the Context ClassLoader
-        ClassLoader cl = SecuritySupport.getContextClassLoader();
-        if (cl != null) {
-            is = SecuritySupport.getResourceAsStream(cl, serviceId);
-
-            // If no provider found then try the current ClassLoader
-            if (is == null) {
-                cl = FactoryFinder.class.getClassLoader();
-                is = SecuritySupport.getResourceAsStream(cl, serviceId);
-            }
-        } else {
-            // No Context ClassLoader, try the current
-            // ClassLoader
-            cl = FactoryFinder.class.getClassLoader();
-            is = SecuritySupport.getResourceAsStream(cl, serviceId);
-        }
-
-        if (is == null) {
-            // No provider found
-            return null;
-        }
-
-        if (debug) dPrint("found jar resource=" + serviceId +
-               " using ClassLoader: " + cl);
-
-        // Read the service provider name in UTF-8 as specified in
-        // the jar spec.  Unfortunately this fails in Microsoft
-        // VJ++, which does not implement the UTF-8
-        // encoding. Theoretically, we should simply let it fail in
-        // that case, since the JVM is obviously broken if it
-        // doesn't support such a basic standard.  But since there
-        // are still some users attempting to use VJ++ for
-        // development, we have dropped in a fallback which makes a
-        // second attempt using the platform's default encoding. In
-        // VJ++ this is apparently ASCII, which is a subset of
-        // UTF-8... and since the strings we'll be reading here are
-        // also primarily limited to the 7-bit ASCII range (at
-        // least, in English versions), this should work well
-        // enough to keep us on the air until we're ready to
-        // officially decommit from VJ++. [Edited comment from
-        // jkesselm]
-        BufferedReader rd;
-        try {
-            rd = new BufferedReader(new InputStreamReader(is, "UTF-8"), DEFAULT_LINE_LENGTH);
-        } catch (java.io.UnsupportedEncodingException e) {
-            rd = new BufferedReader(new InputStreamReader(is), DEFAULT_LINE_LENGTH);
-        }
-        
-        String factoryClassName = null;
-        try {
-            // XXX Does not handle all possible input as specified by the
-            // Jar Service Provider specification
-            factoryClassName = rd.readLine();
-        } 
-        catch (IOException x) {
-            // No provider found
-            return null;
-        }
-        finally {
-            try { 
-                // try to close the reader. 
-                rd.close(); 
-            } 
-            // Ignore the exception. 
-            catch (IOException exc) {}
-        }
-
-        if (factoryClassName != null &&
-            ! "".equals(factoryClassName)) {
-            if (debug) dPrint("found in resource, value="
-                   + factoryClassName);
-
-        // Note: here we do not want to fall back to the current
-        // ClassLoader because we want to avoid the case where the
-        // resource file was found using one ClassLoader and the
-        // provider class was instantiated using a different one.
-        return newInstance(factoryClassName, cl, false);
-        }
-
-        // No provider found
-        return null;
-    }
-
     static class ConfigurationError extends Error {
         private Exception exception;
 
@@ -19,13 +19,7 @@
 
 package javax.xml.datatype;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.URL;
-import java.util.Properties;
 
 /**
  * <p>Implement pluggabile Datatypes.</p>
@@ -50,14 +44,13 @@ final class FactoryFinder {
     private static boolean debug = false;
     
     /**
-     * <p>Cache properties for performance.</p>
+     * <p>Resolves providers outside of OSGi.</p>
      */
-	private static Properties cacheProps = new Properties();
-	
-	/**
-	 * <p>First time requires initialization overhead.</p>
-	 */
-	private static boolean firstTime = true;
+    private static final org.apache.servicemix.specs.locator.ProviderResolver resolver =
+        new org.apache.servicemix.specs.locator.ProviderResolver(
+            org.apache.servicemix.specs.locator.ProviderResolver.SYSTEM_PROPERTY,
+            org.apache.servicemix.specs.locator.ProviderResolver.propertiesFile("jaxp.properties"),
+            org.apache.servicemix.specs.locator.ProviderResolver.services(FactoryFinder.class.getClassLoader()));
     
     /**
      * Default columns per line.
@@ -164,7 +157,7 @@ final class FactoryFinder {
             	debugPrintln("Loaded " + className + " from " + which(spiClass));
             }
              
-            return spiClass.newInstance();
+            return org.apache.servicemix.specs.locator.Instantiator.newInstance(spiClass);
         } catch (ClassNotFoundException x) {
             throw new ConfigurationError(
                 "Provider " + className + " not found", x);
@@ -192,65 +185,29 @@ final class FactoryFinder {
         	
         ClassLoader classLoader = findClassLoader();
 
-        try {
-            // If we are deployed into an OSGi environment, leverage it
-            Class factoryClass;
-            if (FactoryFinder.class.getClassLoader() != null) {
-                factoryClass = FactoryFinder.class.getClassLoader().loadClass(factoryId);
-            } else {
-                factoryClass = Class.forName(factoryId);
-            }
-            Class spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(factoryClass, factoryId);
-            if (spiClass != null) {
-                return spiClass.newInstance();
-            }
-        } catch (Throwable e) {
-        }
-
-        // Use the system property first
-        try {
-            String systemProp = SecuritySupport.getSystemProperty(factoryId);
-            if (systemProp != null) {
-                if (debug) debugPrintln("found " + systemProp + " in the system property " + factoryId);
-                return newInstance(systemProp, classLoader);
+        if (org.apache.servicemix.specs.locator.OsgiLocator.isActive()) {
+            try {
+                // If we are deployed into an OSGi environment, leverage it
+                Class factoryClass;
+                if (FactoryFinder.class.getClassLoader() != null) {
+                    factoryClass = FactoryFinder.class.getClassLoader().loadClass(factoryId);
+                } else {
+                    factoryClass = Class.forName(factoryId);
+                }
+                Object instance = org.apache.servicemix.specs.locator.OsgiLocator.locateInstance(factoryClass, factoryId);
+                if (instance != null) {
+                    return instance;
+                }
+            } catch (Throwable e) {
             }
-        } catch (SecurityException se) {
-        	; // NOP, explicitly ignore SecurityException
         }
 
-        // try to read from $java.home/lib/jaxp.properties
-        try {
-            String javah = SecuritySupport.getSystemProperty("java.home");
-            String configFile = javah + File.separator + "lib" + File.separator + "jaxp.properties";
-			String factoryClassName = null;
-			if (firstTime) {
-				synchronized (cacheProps) {
-					if (firstTime) {
-						File f = new File(configFile);
-						firstTime = false;
-						if (SecuritySupport.doesFileExist(f)) {
-							if (debug) debugPrintln("Read properties file " + f);
-							cacheProps.load(SecuritySupport.getFileInputStream(f));
-						}
-					}
-				}
-			}
-			factoryClassName = cacheProps.getProperty(factoryId);
-            if (debug) debugPrintln("found " + factoryClassName + " in $java.home/jaxp.properties"); 
-			
-			if (factoryClassName != null) {
-				return newInstance(factoryClassName, classLoader);
-			}
-        } catch (Exception ex) {
-            if (debug) {
-            	ex.printStackTrace();
-            } 
-        }
-        
-        // Try Jar Service Provider Mechanism
-        Object provider = findJarServiceProvider(factoryId);
+        // Use the system property, $java.home/lib/jaxp.properties and the Jar
+        // Service Provider Mechanism, in that order
+        org.apache.servicemix.specs.locator.ProviderResolver.Provider provider = resolver.resolve(factoryId, classLoader);
         if (provider != null) {
-            return provider;
+            if (debug) debugPrintln("found " + provider);
+            return newInstance(provider.getClassName(), provider.getClassLoader());
         }
 
         if (fallbackClassName == null) {
@@ -259,90 +216,10 @@ final class FactoryFinder {
         }
 
         if (debug) debugPrintln("loaded from fallback value: " + fallbackClassName);
+        org.apache.servicemix.specs.locator.LocatorStatistics.recordResolution(factoryId, org.apache.servicemix.specs.locator.ResolutionSource.FALLBACK);
         return newInstance(fallbackClassName, classLoader);
     }
 
-    /*
-     * Try to find provider using Jar Service Provider Mechanism
-     *
-     * @return instance of provider class if found or null
-     */
-    private static Object findJarServiceProvider(String factoryId)
-        throws ConfigurationError
-    {
-
-        String serviceId = "META-INF/services/" + factoryId;
-        InputStream is = null;
-
-        // First try the Context ClassLoader
-        ClassLoader cl = SecuritySupport.getContextClassLoader();
-        if (cl != null) {
-            is = SecuritySupport.getResourceAsStream(cl, serviceId);
-
-            // If no provider found then try the current ClassLoader
-            if (is == null) {
-                cl = FactoryFinder.class.getClassLoader();
-                if (cl == null) {
-                    cl = ClassLoader.getSystemClassLoader();
-                }
-                is = SecuritySupport.getResourceAsStream(cl, serviceId);
-            }
-        } else {
-            // No Context ClassLoader, try the current
-            // ClassLoader
-            cl = FactoryFinder.class.getClassLoader();
-            if (cl == null) {
-                cl = ClassLoader.getSystemClassLoader();
-            }
-            is = SecuritySupport.getResourceAsStream(cl, serviceId);
-        }
-
-        if (is == null) {
-            // No provider found
-            return null;
-        }
-
-        if (debug) debugPrintln("found jar resource=" + serviceId +
-               " using ClassLoader: " + cl);
-
-        BufferedReader rd;
-        try {
-            rd = new BufferedReader(new InputStreamReader(is, "UTF-8"), DEFAULT_LINE_LENGTH);
-        } catch (java.io.UnsupportedEncodingException e) {
-            rd = new BufferedReader(new InputStreamReader(is), DEFAULT_LINE_LENGTH);
-        }
-        
-        String factoryClassName = null;
-        try {
-            // XXX Does not handle all possible input as specified by the
-            // Jar Service Provider specification
-            factoryClassName = rd.readLine();
-        } 
-        catch (IOException x) {
-            // No provider found
-            return null;
-        }
-        finally {
-            try { 
-                // try to close the reader. 
-                rd.close(); 
-            } 
-            // Ignore the exception. 
-            catch (IOException exc) {}
-        }
-
-        if (factoryClassName != null &&
-            ! "".equals(factoryClassName)) {
-            if (debug) debugPrintln("found in resource, value="
-                   + factoryClassName);
-
-            return newInstance(factoryClassName, cl);
-        }
-
-        // No provider found
-        return null;
-    }
-    
 	/**
 	 * <p>Configuration Error.</p>
 	 */
@@ -158,13 +158,15 @@ final class SchemaFactoryFinder  {
         SchemaFactory sf;
         String propertyName = SERVICE_CLASS.getName() + ":" + schemaLanguage;
         
-        try {
-            // If we are deployed into an OSGi environment, leverage it
-            Class spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(SERVICE_CLASS);
-            if (spiClass != null) {
-                return (SchemaFactory) spiClass.newInstance();
+        if (org.apache.servicemix.specs.locator.OsgiLocator.isActive()) {
+            try {
+                // If we are deployed into an OSGi environment, leverage it
+                Class spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(SERVICE_CLASS);
+                if (spiClass != null) {
+                    return (SchemaFactory) org.apache.servicemix.specs.locator.Instantiator.newInstance(spiClass);
+                }
+            } catch (Throwable e) {
             }
-        } catch (Throwable e) {
         }
 
         // system property look up
@@ -287,7 +289,7 @@ final class SchemaFactoryFinder  {
             else
                 clazz = Class.forName(className);
             if(debug)       debugPrintln("loaded it from "+which(clazz));
-            Object o = clazz.newInstance();
+            Object o = org.apache.servicemix.specs.locator.Instantiator.newInstance(clazz);
             
             if( o instanceof SchemaFactory )
                 return (SchemaFactory)o;
@@ -159,13 +159,15 @@ final class XPathFactoryFinder {
         
         String propertyName = SERVICE_CLASS.getName() + ":" + uri;
         
-        try {
-            // If we are deployed into an OSGi environment, leverage it
-            Class spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(SERVICE_CLASS);
-            if (spiClass != null) {
-                return (XPathFactory) spiClass.newInstance();
+        if (org.apache.servicemix.specs.locator.OsgiLocator.isActive()) {
+            try {
+                // If we are deployed into an OSGi environment, leverage it
+                Class spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(SERVICE_CLASS);
+                if (spiClass != null) {
+                    return (XPathFactory) org.apache.servicemix.specs.locator.Instantiator.newInstance(spiClass);
+                }
+            } catch (Throwable e) {
             }
-        } catch (Throwable e) {
         }
 
         // system property look up
@@ -271,7 +273,7 @@ final class XPathFactoryFinder {
             else
                 clazz = Class.forName(className);
             if(debug)       debugPrintln("loaded it from "+which(clazz));
-            Object o = clazz.newInstance();
+            Object o = org.apache.servicemix.specs.locator.Instantiator.newInstance(clazz);
             
             if( o instanceof XPathFactory )
                 return (XPathFactory)o;
@@ -121,13 +121,15 @@ final public class XMLReaderFactory
         if (className == null || className.length() == 0) {
             String      service = "META-INF/services/" + property;
             
-	        try {
-	            // If we are deployed into an OSGi environment, leverage it
-	            Class<? extends XMLReader> spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(XMLReader.class, property);
-	            if (spiClass != null) {
-	                return spiClass.newInstance();
+	        if (org.apache.servicemix.specs.locator.OsgiLocator.isActive()) {
+	            try {
+	                // If we are deployed into an OSGi environment, leverage it
+	                Class<? extends XMLReader> spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(XMLReader.class, property);
+	                if (spiClass != null) {
+	                    return org.apache.servicemix.specs.locator.Instantiator.newInstance(spiClass);
+	                }
+	            } catch (Throwable e) {
 	            }
-	        } catch (Throwable e) {
 	        }
 
             InputStream is = null;
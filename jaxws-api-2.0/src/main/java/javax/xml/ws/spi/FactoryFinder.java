@@ -128,12 +128,12 @@ class FactoryFinder {
                     try {
                         if (iClassLoader != null) {
                             try {
-                                return iClassLoader.loadClass(iClassName).newInstance();
+                                return org.apache.servicemix.specs.locator.Instantiator.newInstance(iClassLoader.loadClass(iClassName));
                             } catch (ClassNotFoundException x) {
                                 // try again
                             }
                         }
-                        return Class.forName(iClassName).newInstance();
+                        return org.apache.servicemix.specs.locator.Instantiator.newInstance(Class.forName(iClassName));
                     } catch (ClassNotFoundException x) {
                         throw new ConfigurationError(
                                 "Provider " + iClassName + " not found", x);
@@ -172,19 +172,21 @@ class FactoryFinder {
                     
                     ClassLoader classLoader = findClassLoader();
                     
-			        try {
-			            // If we are deployed into an OSGi environment, leverage it
-                        Class factoryClass;
-                        if (FactoryFinder.class.getClassLoader() == null) {
-                            factoryClass = Class.forName(iFactoryId);
-                        } else {
-                            factoryClass = FactoryFinder.class.getClassLoader().loadClass(iFactoryId);
-                        }
-                        Class spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(factoryClass, iFactoryId);
-			            if (spiClass != null) {
-			                return spiClass.newInstance();
+			        if (org.apache.servicemix.specs.locator.OsgiLocator.isActive()) {
+			            try {
+			                // If we are deployed into an OSGi environment, leverage it
+                            Class factoryClass;
+                            if (FactoryFinder.class.getClassLoader() == null) {
+                                factoryClass = Class.forName(iFactoryId);
+                            } else {
+                                factoryClass = FactoryFinder.class.getClassLoader().loadClass(iFactoryId);
+                            }
+                            Class spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(factoryClass, iFactoryId);
+			                if (spiClass != null) {
+			                    return org.apache.servicemix.specs.locator.Instantiator.newInstance(spiClass);
+			                }
+			            } catch (Throwable e) {
 			            }
-			        } catch (Throwable e) {
 			        }
 			
                     // Use the system property first
@@ -138,7 +138,7 @@ class FactoryFinder {
             doPrivileged( new PrivilegedAction<Object>() {
                 public Object run() {
                     try {
-                        return ProviderLocator.loadClass(iClassName, FactoryFinder.class, iClassLoader).newInstance();
+                        return org.apache.servicemix.specs.locator.Instantiator.newInstance(ProviderLocator.loadClass(iClassName, FactoryFinder.class, iClassLoader));
                     } catch (ClassNotFoundException x) {
                         throw new ConfigurationError(
                                 "Provider " + iClassName + " not found", x);
@@ -182,24 +182,26 @@ class FactoryFinder {
                     // 4.  The default implementation class
 
                     ClassLoader classLoader = findClassLoader();
-                    try {
-                        // If we are deployed into an OSGi environment, leverage it
-                        Class factoryClass = null;
-                        if (FactoryFinder.class.getClassLoader() != null) {
-                            factoryClass = FactoryFinder.class.getClassLoader().loadClass(iFactoryId);
-                        } else {
-                            factoryClass = Class.forName(iFactoryId);
-                        }
-                        Class spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(factoryClass, iFactoryId);
-                        if (spiClass != null) {
-                            debugPrintln("Found spiClass: " + spiClass);
-                            return spiClass.newInstance();
-                        } else {
-                            debugPrintln("No spiClass found in OSGi");
-                        }
-                     } catch (Throwable e) {
-                        if (debug) e.printStackTrace();
-                     }
+                    if (org.apache.servicemix.specs.locator.OsgiLocator.isActive()) {
+                        try {
+                            // If we are deployed into an OSGi environment, leverage it
+                            Class factoryClass = null;
+                            if (FactoryFinder.class.getClassLoader() != null) {
+                                factoryClass = FactoryFinder.class.getClassLoader().loadClass(iFactoryId);
+                            } else {
+                                factoryClass = Class.forName(iFactoryId);
+                            }
+                            Class spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(factoryClass, iFactoryId);
+                            if (spiClass != null) {
+                                debugPrintln("Found spiClass: " + spiClass);
+                                return org.apache.servicemix.specs.locator.Instantiator.newInstance(spiClass);
+                            } else {
+                                debugPrintln("No spiClass found in OSGi");
+                            }
+                         } catch (Throwable e) {
+                            if (debug) e.printStackTrace();
+                         }
+                    }
 
                     try {
                         // check the META-INF/services definitions, and return it if
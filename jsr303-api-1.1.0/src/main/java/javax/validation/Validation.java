@@ -312,15 +312,17 @@ public class Validation {
 
 			if ( providers == null ) {
 				providers = new ArrayList<ValidationProvider<?>>();
-				try {
-					// If we are deployed into an OSGi environment, leverage it
-					Class<? extends ValidationProvider> providerClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(ValidationProvider.class);
-					if (providerClass != null) {
-						providers.add(providerClass.newInstance());
-					}
-				} catch (Throwable e) {
-					// Do nothing here
-				} 
+				if (org.apache.servicemix.specs.locator.OsgiLocator.isActive()) {
+					try {
+						// If we are deployed into an OSGi environment, leverage it
+						Class<? extends ValidationProvider> providerClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(ValidationProvider.class);
+						if (providerClass != null) {
+							providers.add(org.apache.servicemix.specs.locator.Instantiator.newInstance(providerClass));
+						}
+					} catch (Throwable e) {
+						// Do nothing here
+					} 
+				}
 				String name = null;
 				try {
 					Enumeration<URL> providerDefinitions = classloader.getResources( SERVICES_FILE );
@@ -339,7 +341,7 @@ public class Validation {
 									);
 
 									providers.add(
-											( ValidationProvider ) providerClass.newInstance()
+											( ValidationProvider ) org.apache.servicemix.specs.locator.Instantiator.newInstance(providerClass)
 									);
 								}
 								name = reader.readLine();
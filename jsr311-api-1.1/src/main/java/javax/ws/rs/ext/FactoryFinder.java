@@ -43,7 +43,7 @@ class FactoryFinder {
             } else {
                 spiClass = classLoader.loadClass(className);
             }
-            return spiClass.newInstance();
+            return org.apache.servicemix.specs.locator.Instantiator.newInstance(spiClass);
         } catch (ClassNotFoundException x) {
             throw x;
         } catch (Exception x) {
@@ -74,14 +74,15 @@ class FactoryFinder {
      * @exception WebServiceException if there is an error
      */
     static Object find(String factoryId, String fallbackClassName) throws ClassNotFoundException {
-        try {
-            // If we are deployed into an OSGi environment, leverage it
-            Class factoryClass = FactoryFinder.class.getClassLoader().loadClass(factoryId);
-            Class spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(factoryClass, factoryId);
-            if (spiClass != null) {
-                return spiClass.newInstance();
+        if (org.apache.servicemix.specs.locator.OsgiLocator.isActive()) {
+            try {
+                // If we are deployed into an OSGi environment, leverage it
+                Class spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(factoryId, FactoryFinder.class.getClassLoader());
+                if (spiClass != null) {
+                    return org.apache.servicemix.specs.locator.Instantiator.newInstance(spiClass);
+                }
+            } catch (Throwable e) {
             }
-        } catch (Throwable e) {
         }
 
         ClassLoader classLoader;
@@ -113,7 +113,7 @@ final class FactoryFinder {
                     spiClass = Class.forName(className);
                 }
             }
-            return spiClass.newInstance();
+            return org.apache.servicemix.specs.locator.Instantiator.newInstance(spiClass);
         } catch (ClassNotFoundException x) {
             throw x;
         } catch (Exception x) {
@@ -143,14 +143,15 @@ final class FactoryFinder {
      */
     static Object find(final String factoryId, final String fallbackClassName) throws ClassNotFoundException {
         
-        try {
-            // If we are deployed into an OSGi environment, leverage it
-            Class factoryClass = FactoryFinder.class.getClassLoader().loadClass(factoryId);
-            Class spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(factoryClass, factoryId);
-            if (spiClass != null) {
-                return spiClass.newInstance();
+        if (org.apache.servicemix.specs.locator.OsgiLocator.isActive()) {
+            try {
+                // If we are deployed into an OSGi environment, leverage it
+                Class spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(factoryId, FactoryFinder.class.getClassLoader());
+                if (spiClass != null) {
+                    return org.apache.servicemix.specs.locator.Instantiator.newInstance(spiClass);
+                }
+            } catch (Throwable e) {
             }
-        } catch (Throwable e) {
         }
 
         ClassLoader classLoader = getContextClassLoader();
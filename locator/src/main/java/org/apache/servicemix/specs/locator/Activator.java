@@ -17,35 +17,134 @@
 package org.apache.servicemix.specs.locator;
 
 import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.reflect.Method;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleReference;
 import org.osgi.framework.SynchronousBundleListener;
 
 public class Activator implements BundleActivator, SynchronousBundleListener {
 
-    private static boolean debug = false;
+    /**
+     * Number of threads used to scan the bundles already installed when the
+     * activator starts, or <code>virtual</code> to use a virtual thread per
+     * bundle when the JVM supports it.  The scan is sequential by default.
+     */
+    public static final String SCAN_THREADS = "org.apache.servicemix.specs.scan.threads";
+
+    /**
+     * Set to <code>false</code> to disable the index of service files kept in
+     * the bundle data area across restarts.
+     */
+    public static final String SCAN_INDEX = "org.apache.servicemix.specs.scan.index";
+
+    private static final String SCAN_INDEX_FILE = "services.idx";
+
+    /**
+     * Comma separated list of factory ids whose providers are loaded in the
+     * background as soon as they are registered, or <code>*</code> for all of
+     * them.  Providers are loaded on the first lookup by default.
+     */
+    public static final String PREWARM = "org.apache.servicemix.specs.prewarm";
+
+    /**
+     * Set to <code>true</code> to index the service files of resolved bundles
+     * on a background thread instead of the framework event thread.  Lookups
+     * finding no provider meanwhile wait for the pending bundles to be indexed.
+     */
+    public static final String ASYNC = "org.apache.servicemix.specs.async";
+
+    /**
+     * Bundle header giving the ranking of the providers of a bundle, see
+     * {@link Ranked}.
+     */
+    public static final String RANKING_HEADER = "Spec-Provider-Ranking";
+
+    /**
+     * Bundle header declaring the providers of a bundle as a comma separated
+     * list of <code>factoryId=className</code> entries, so that its
+     * <code>META-INF/services</code> directory is not walked.  Add a
+     * <code>*</code> entry to have the service files read as well, the
+     * declared providers taking precedence.
+     */
+    public static final String PROVIDERS_HEADER = "Spec-Providers";
+
+    /**
+     * Bundle header giving the {@link Regional region} of a bundle.  The
+     * providers of a bundle are only visible to the lookups of its region, or
+     * to all lookups if it has none.  Lookups are made in the region of the
+     * bundle the thread context class loader belongs to, or else in the one
+     * of the spec bundle.
+     */
+    public static final String REGION_HEADER = "Spec-Region";
+
+    /**
+     * Set to <code>true</code> to have a single locator scan the bundles and
+     * share its registry with the other spec bundles, see {@link SharedRegistry}.
+     */
+    public static final String SHARED = "org.apache.servicemix.specs.shared";
+
+    private static final boolean WIRING_AVAILABLE = isWiringAvailable();
 
     private ConcurrentMap<Long, Map<String, Callable<Class>>> factories = new ConcurrentHashMap<Long, Map<String, Callable<Class>>>();
 
     private BundleContext bundleContext;
 
-    static {
-        try {
-            String prop = System.getProperty("org.apache.servicemix.specs.debug");
-            debug = prop != null && !"false".equals(prop);
-        } catch (Throwable t) { }
-    }
+    private ObjectName statisticsName;
+
+    private volatile ScanIndex index;
+
+    private volatile ExecutorService prewarmExecutor;
+
+    private volatile ExecutorService indexer;
+
+    private Set<String> prewarmIds;
+
+    private SharedRegistry registry;
+
+    private ConfigurationTracker configuration;
+
+    /**
+     * Region of each bundle that made a lookup, the empty string for none.
+     * Keyed by the bundle itself, which the framework keeps for its lifetime.
+     */
+    private final ConcurrentMap<Bundle, String> regions = new ConcurrentHashMap<Bundle, String>();
+
+    /**
+     * Service entries found by the parallel scan at startup, consumed by
+     * {@link #register(Bundle)} when the bundle is published.
+     */
+    private final ConcurrentMap<Long, Map<String, Callable<Class>>> scanned = new ConcurrentHashMap<Long, Map<String, Callable<Class>>>();
 
     /**
      * <p>Output debugging messages.</p>
@@ -53,52 +152,485 @@ public class Activator implements BundleActivator, SynchronousBundleListener {
      * @param msg <code>String</code> to print to <code>stderr</code>.
      */
     protected void debugPrintln(String msg) {
-        if (debug) {
+        if (LocatorConfiguration.get().isDebug()) {
             System.err.println("Spec(" + bundleContext.getBundle().getBundleId() + "): " + msg);
         }
     }
 
     public synchronized void start(BundleContext bundleContext) throws Exception {
         this.bundleContext = bundleContext;
+        OsgiLocator.refreshConfiguration();
+        if (isConfigurationAdminAvailable()) {
+            configuration = new ConfigurationTracker(bundleContext);
+            configuration.open();
+        }
         debugPrintln("activating");
         debugPrintln("adding bundle listener");
         bundleContext.addBundleListener(this);
+        OsgiLocator.setRegion(getRegion(bundleContext.getBundle()));
+        OsgiLocator.setCallerRegion(new CallerRegion());
+        OsgiLocator.setActive(true);
+        index = createScanIndex();
+        prewarmExecutor = createPrewarmExecutor();
+        indexer = createIndexer();
+        if (isShared()) {
+            registry = new SharedRegistry(bundleContext, new Runnable() {
+                public void run() {
+                    takeOver();
+                }
+            });
+            if (registry.open()) {
+                debugPrintln("using the shared registry");
+            } else {
+                // lookups wait for the startup barrier until the bundles are scanned
+                OsgiLocator.setUpdating(true);
+                try {
+                    registerBundles();
+                } finally {
+                    OsgiLocator.setUpdating(false);
+                    registry.publish();
+                }
+            }
+        } else {
+            registerBundles();
+        }
+        statisticsName = LocatorStatistics.registerMBean(bundleContext.getBundle().getSymbolicName(),
+                                                         bundleContext.getBundle().getBundleId());
+        debugPrintln("activated");
+    }
+
+    /**
+     * Register the providers of the bundles already installed.
+     */
+    private void registerBundles() throws InterruptedException {
         debugPrintln("checking existing bundles");
+        List<Bundle> bundles = new ArrayList<Bundle>();
+        List<Long> installed = new ArrayList<Long>();
         for (Bundle bundle : bundleContext.getBundles()) {
+            installed.add(bundle.getBundleId());
             if (bundle.getState() == Bundle.RESOLVED || bundle.getState() == Bundle.STARTING ||
                     bundle.getState() == Bundle.ACTIVE || bundle.getState() == Bundle.STOPPING) {
+                bundles.add(bundle);
+            }
+        }
+        if (scansServices()) {
+            // publish the whole startup scan as a single registry update
+            scanAll(bundles);
+            Map<String, List<Callable<Class>>> batch = new HashMap<String, List<Callable<Class>>>();
+            List<Callable<Class>> found = new ArrayList<Callable<Class>>();
+            try {
+                for (Bundle bundle : bundles) {
+                    found.addAll(collect(bundle, batch));
+                }
+            } finally {
+                scanned.clear();
+            }
+            OsgiLocator.registerAll(batch);
+            prewarm(found);
+        } else {
+            for (Bundle bundle : bundles) {
                 register(bundle);
             }
         }
-        debugPrintln("activated");
+        if (index != null) {
+            index.retain(installed);
+            saveScanIndex();
+        }
+    }
+
+    /**
+     * Scan the bundles and publish the registry once the shared one is gone.
+     */
+    private synchronized void takeOver() {
+        if (bundleContext == null) {
+            return;
+        }
+        debugPrintln("taking over the shared registry");
+        try {
+            registerBundles();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        registry.publish();
+    }
+
+    /**
+     * Whether the optional import of the wiring API is wired, i.e. whether the
+     * framework implements OSGi R4.3 or later.  The API is only used from
+     * {@link Wiring}, which is not loaded otherwise.
+     */
+    private static boolean isWiringAvailable() {
+        try {
+            Class.forName("org.osgi.framework.wiring.BundleWiring", false, Activator.class.getClassLoader());
+            return true;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    /**
+     * Whether the optional import of the Configuration Admin API is wired.
+     */
+    private boolean isConfigurationAdminAvailable() {
+        try {
+            Class.forName("org.osgi.service.cm.ConfigurationListener", false, Activator.class.getClassLoader());
+            return true;
+        } catch (Throwable t) {
+            debugPrintln("configuration admin not available");
+            return false;
+        }
+    }
+
+    private boolean isShared() {
+        try {
+            return scansServices() && "true".equals(System.getProperty(SHARED));
+        } catch (Throwable t) {
+            return false;
+        }
     }
 
     public synchronized void stop(BundleContext bundleContext) throws Exception {
         debugPrintln("deactivating");
+        OsgiLocator.setActive(false);
+        LocatorStatistics.unregisterMBean(statisticsName);
+        statisticsName = null;
         bundleContext.removeBundleListener(this);
+        if (registry != null) {
+            registry.close();
+            registry = null;
+        }
+        if (configuration != null) {
+            configuration.close();
+            configuration = null;
+        }
+        stopIndexer();
         while (!factories.isEmpty()) {
             unregister(factories.keySet().iterator().next());
         }
+        saveScanIndex();
+        index = null;
+        OsgiLocator.setRegion(null);
+        OsgiLocator.setCallerRegion(null);
+        regions.clear();
+        if (prewarmExecutor != null) {
+            prewarmExecutor.shutdownNow();
+            prewarmExecutor = null;
+        }
         debugPrintln("deactivated");
         this.bundleContext = null;
     }
 
     public void bundleChanged(BundleEvent event) {
+        SharedRegistry shared;
         synchronized (this) {
             if (bundleContext == null) {
                 return;
             }
+            shared = registry;
+        }
+        if (event.getType() == BundleEvent.UPDATED || event.getType() == BundleEvent.UNINSTALLED) {
+            regions.remove(event.getBundle());
+        }
+        if (shared != null && shared.isConsuming()) {
+            // the owner of the shared registry takes care of it
+            return;
+        }
+        if (event.getType() != BundleEvent.RESOLVED && event.getType() != BundleEvent.UNRESOLVED
+                && event.getType() != BundleEvent.UNINSTALLED) {
+            return;
+        }
+        ExecutorService executor = indexer;
+        if (executor != null) {
+            IndexTask task = new IndexTask(event);
+            try {
+                executor.execute(task);
+                return;
+            } catch (RejectedExecutionException e) {
+                // the activator is stopping, handle the event in place
+                task.release();
+            }
         }
+        handleEvent(event);
+    }
+
+    private void handleEvent(BundleEvent event) {
         if (event.getType() == BundleEvent.RESOLVED) {
             register(event.getBundle());
         } else if (event.getType() == BundleEvent.UNRESOLVED || event.getType() == BundleEvent.UNINSTALLED) {
             unregister(event.getBundle().getBundleId());
         }
+        if (event.getType() == BundleEvent.UNINSTALLED) {
+            ScanIndex idx = index;
+            if (idx != null) {
+                idx.remove(event.getBundle().getBundleId());
+            }
+        }
+    }
+
+    /**
+     * Factory ids the given event may change the providers of, or
+     * <code>null</code> if they are not known.  Only the names of the service
+     * files are listed, their content is left to the indexer.
+     */
+    private Set<String> getFactoryIds(BundleEvent event) {
+        Bundle bundle = event.getBundle();
+        Set<String> ids = new HashSet<String>();
+        try {
+            if (event.getType() != BundleEvent.RESOLVED) {
+                Map<String, Callable<Class>> map = factories.get(bundle.getBundleId());
+                if (map != null) {
+                    ids.addAll(map.keySet());
+                }
+                return ids;
+            }
+            Map<String, String> declared = new HashMap<String, String>();
+            boolean complete = readProvidersHeader(bundle, declared);
+            ids.addAll(declared.keySet());
+            Enumeration e = complete ? null : bundle.findEntries("META-INF/services/", "*", false);
+            while (e != null && e.hasMoreElements()) {
+                String url = e.nextElement().toString();
+                if (!url.endsWith("/")) {
+                    ids.add(url.substring(url.lastIndexOf("/") + 1));
+                }
+            }
+            return ids;
+        } catch (RuntimeException e) {
+            // modified concurrently or uninstalled meanwhile, wait for any lookup
+            return null;
+        }
     }
 
     protected void register(final Bundle bundle) {
-        debugPrintln("checking bundle " + bundle.getBundleId());
+        Map<String, List<Callable<Class>>> batch = new HashMap<String, List<Callable<Class>>>();
+        Collection<Callable<Class>> found = collect(bundle, batch);
+        OsgiLocator.registerAll(batch);
+        prewarm(found);
+    }
+
+    /**
+     * Record the service files of the given bundle and add the factories to
+     * register for it to the given batch.
+     *
+     * @return the factories newly found in the bundle
+     */
+    private Collection<Callable<Class>> collect(Bundle bundle, Map<String, List<Callable<Class>>> batch) {
+        Map<String, Callable<Class>> found = scanned.remove(bundle.getBundleId());
+        if (found == null) {
+            found = scan(bundle);
+        }
         Map<String, Callable<Class>> map = factories.get(bundle.getBundleId());
+        if (!found.isEmpty()) {
+            if (map == null) {
+                map = found;
+                factories.put(bundle.getBundleId(), map);
+            } else {
+                for (Map.Entry<String, Callable<Class>> entry : found.entrySet()) {
+                    Callable<Class> old = map.put(entry.getKey(), entry.getValue());
+                    if (old instanceof BundleFactoryLoader) {
+                        ((BundleFactoryLoader) old).release();
+                    }
+                }
+            }
+        }
+        if (map != null) {
+            for (Map.Entry<String, Callable<Class>> entry : map.entrySet()) {
+                debugPrintln("registering service for key " + entry.getKey() + " with value " + entry.getValue());
+                List<Callable<Class>> l = batch.get(entry.getKey());
+                if (l == null) {
+                    l = new ArrayList<Callable<Class>>();
+                    batch.put(entry.getKey(), l);
+                }
+                l.add(entry.getValue());
+            }
+        }
+        return found.values();
+    }
+
+    /**
+     * Load the classes of the given providers on the pre-warm executor so that
+     * the first lookups do not pay for it.  Failures are left to be reported
+     * by the lookups themselves.
+     */
+    private void prewarm(Iterable<Callable<Class>> loaders) {
+        ExecutorService executor = prewarmExecutor;
+        if (executor == null) {
+            return;
+        }
+        for (final Callable<Class> loader : loaders) {
+            if (prewarmIds != null && !prewarmIds.contains(((BundleFactoryLoader) loader).factoryId)) {
+                continue;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            loader.call();
+                        } catch (Throwable t) {
+                            // ignore, the lookup will fail the same way
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the activator is stopping
+                return;
+            }
+        }
+    }
+
+    private ExecutorService createIndexer() {
+        try {
+            if (!"true".equals(System.getProperty(ASYNC))) {
+                return null;
+            }
+        } catch (Throwable t) {
+            return null;
+        }
+        final String name = "Spec(" + bundleContext.getBundle().getBundleId() + ") indexer";
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Let the indexer finish the queued events, giving up on the ones still
+     * pending after {@link OsgiLocator#BARRIER_TIMEOUT}.
+     */
+    private void stopIndexer() throws InterruptedException {
+        ExecutorService executor = indexer;
+        if (executor == null) {
+            return;
+        }
+        indexer = null;
+        executor.shutdown();
+        if (!executor.awaitTermination(OsgiLocator.BARRIER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            debugPrintln("giving up on pending bundle events");
+        }
+        for (Runnable r : executor.shutdownNow()) {
+            ((IndexTask) r).release();
+        }
+    }
+
+    private ExecutorService createPrewarmExecutor() {
+        String prop = null;
+        try {
+            prop = System.getProperty(PREWARM);
+        } catch (Throwable t) { }
+        if (prop == null || prop.trim().length() == 0) {
+            return null;
+        }
+        prewarmIds = null;
+        if (!"*".equals(prop.trim())) {
+            prewarmIds = new HashSet<String>();
+            for (String id : prop.split(",")) {
+                if (id.trim().length() > 0) {
+                    prewarmIds.add(id.trim());
+                }
+            }
+        }
+        final String name = "Spec(" + bundleContext.getBundle().getBundleId() + ") pre-warm";
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Look for the providers of the given bundle, either declared by the
+     * {@link #PROVIDERS_HEADER} header or listed in its service files.  This
+     * only reads the bundle headers and entries and may be called concurrently
+     * for different bundles.
+     */
+    private Map<String, Callable<Class>> scan(Bundle bundle) {
+        Map<String, String> providers = new HashMap<String, String>();
+        Map<String, URL> unread = new HashMap<String, URL>();
+        if (!readProvidersHeader(bundle, providers)) {
+            Map<String, String> declared = providers;
+            providers = scanServices(bundle, unread);
+            if (!declared.isEmpty()) {
+                providers = new HashMap<String, String>(providers);
+                providers.putAll(declared);
+                unread.keySet().removeAll(declared.keySet());
+            }
+        }
+        Map<String, Callable<Class>> map = new HashMap<String, Callable<Class>>();
+        if (!providers.isEmpty() || !unread.isEmpty()) {
+            int ranking = getRanking(bundle);
+            String region = getRegion(bundle);
+            Map<String, ClassLoader> imports = getImportedPackages(bundle);
+            for (Map.Entry<String, String> entry : providers.entrySet()) {
+                map.put(entry.getKey(), new BundleFactoryLoader(entry.getKey(), entry.getValue(), null, bundle,
+                                                                ranking, region, imports));
+            }
+            for (Map.Entry<String, URL> entry : unread.entrySet()) {
+                map.put(entry.getKey(), new BundleFactoryLoader(entry.getKey(), null, entry.getValue(), bundle,
+                                                                ranking, region, imports));
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Add the providers declared by the {@link #PROVIDERS_HEADER} header of
+     * the given bundle to the given map.
+     *
+     * @return <code>true</code> if the header makes reading the service files
+     *         unnecessary
+     */
+    boolean readProvidersHeader(Bundle bundle, Map<String, String> providers) {
+        Object header = bundle.getHeaders().get(PROVIDERS_HEADER);
+        if (header == null) {
+            return false;
+        }
+        boolean complete = true;
+        for (String entry : header.toString().split(",")) {
+            entry = entry.trim();
+            if (entry.length() == 0) {
+                continue;
+            }
+            if ("*".equals(entry)) {
+                complete = false;
+                continue;
+            }
+            int idx = entry.indexOf('=');
+            String factoryId = idx > 0 ? entry.substring(0, idx).trim() : "";
+            String className = idx > 0 ? entry.substring(idx + 1).trim() : "";
+            if (factoryId.length() == 0 || className.length() == 0) {
+                debugPrintln("invalid entry in " + PROVIDERS_HEADER + " header of bundle " + bundle.getBundleId() + ": " + entry);
+                continue;
+            }
+            providers.put(factoryId, className);
+        }
+        return complete;
+    }
+
+    /**
+     * Look for service files in the given bundle, or reuse the indexed ones
+     * if the bundle and its fragments have not changed since it was last
+     * scanned.  Providers listed in the {@link ProviderIndex} of the bundle
+     * are taken from there instead of reading their service file.  When the
+     * scan index is disabled, the other service files are not read here but
+     * added to the given map, to be read on first use.
+     */
+    private Map<String, String> scanServices(Bundle bundle, Map<String, URL> unread) {
+        ScanIndex idx = index;
+        String stamp = idx != null ? getStamp(bundle) : null;
+        Map<String, String> providers = idx != null ? idx.get(bundle.getBundleId(), stamp) : null;
+        if (providers != null) {
+            debugPrintln("using index for bundle " + bundle.getBundleId());
+            return providers;
+        }
+        debugPrintln("checking bundle " + bundle.getBundleId());
+        providers = new HashMap<String, String>();
+        boolean complete = true;
+        ProviderIndex providerIndex = readProviderIndex(bundle);
         Enumeration e = bundle.findEntries("META-INF/services/", "*", false);
         if (e != null) {
             while (e.hasMoreElements()) {
@@ -108,41 +640,397 @@ public class Activator implements BundleActivator, SynchronousBundleListener {
                     continue;
                 }
                 final String factoryId = url.substring(url.lastIndexOf("/") + 1);
-                if (map == null) {
-                    map = new HashMap<String, Callable<Class>>();
-                    factories.put(bundle.getBundleId(), map);
+                try {
+                    String className = providerIndex != null ? providerIndex.getProvider(factoryId) : null;
+                    if (className == null) {
+                        if (idx == null) {
+                            unread.put(factoryId, u);
+                            continue;
+                        }
+                        className = readProvider(u);
+                    }
+                    if (className != null) {
+                        providers.put(factoryId, className);
+                    }
+                } catch (IOException ex) {
+                    debugPrintln("exception caught while reading " + url + ": " + ex);
+                    complete = false;
                 }
-                map.put(factoryId, new BundleFactoryLoader(factoryId, u, bundle));
             }
         }
-        if (map != null) {
-            for (Map.Entry<String, Callable<Class>> entry : map.entrySet()) {
-                debugPrintln("registering service for key " + entry.getKey() + " with value " + entry.getValue());
-                OsgiLocator.register(entry.getKey(), entry.getValue());
+        if (idx != null && complete) {
+            idx.put(bundle.getBundleId(), stamp, providers);
+        }
+        return providers;
+    }
+
+    /**
+     * Stamp of the content of the given bundle for the scan index.  Attaching
+     * a fragment adds entries to the host without changing its last
+     * modification time, so the attached fragments are part of the stamp.
+     */
+    private String getStamp(Bundle bundle) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(bundle.getLastModified());
+        if (!WIRING_AVAILABLE) {
+            return sb.toString();
+        }
+        try {
+            Map<Long, Long> fragments = Wiring.getFragments(bundle);
+            if (fragments != null) {
+                for (Map.Entry<Long, Long> fragment : fragments.entrySet()) {
+                    sb.append('+').append(fragment.getKey()).append(':').append(fragment.getValue());
+                }
             }
+        } catch (Throwable t) {
+            debugPrintln("unable to get the fragments of bundle " + bundle.getBundleId() + ": " + t);
         }
+        return sb.toString();
+    }
+
+    /**
+     * Class loader providing each package imported by the given bundle,
+     * according to its current wiring, or <code>null</code> if the framework
+     * does not support the wiring API.
+     */
+    private Map<String, ClassLoader> getImportedPackages(Bundle bundle) {
+        if (!WIRING_AVAILABLE) {
+            return null;
+        }
+        try {
+            return Wiring.getImportedPackages(bundle);
+        } catch (Throwable t) {
+            debugPrintln("unable to get the wiring of bundle " + bundle.getBundleId() + ": " + t);
+            return null;
+        }
+    }
+
+    private String getRegion(Bundle bundle) {
+        Object header = bundle.getHeaders().get(REGION_HEADER);
+        if (header != null && header.toString().trim().length() > 0) {
+            return header.toString().trim();
+        }
+        return null;
+    }
+
+    private int getRanking(Bundle bundle) {
+        Object header = bundle.getHeaders().get(RANKING_HEADER);
+        if (header != null) {
+            try {
+                return Integer.parseInt(header.toString().trim());
+            } catch (NumberFormatException e) {
+                debugPrintln("invalid " + RANKING_HEADER + " header in bundle " + bundle.getBundleId() + ": " + header);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Read the {@link ProviderIndex} packaged in the given bundle, if any.  It
+     * is only used for the service files the bundle has itself, since it may
+     * also list the providers of dependencies that are not embedded.
+     */
+    private ProviderIndex readProviderIndex(Bundle bundle) {
+        URL u = bundle.getEntry(ProviderIndex.RESOURCE);
+        if (u == null) {
+            return null;
+        }
+        try {
+            ProviderIndex providerIndex = new ProviderIndex();
+            InputStream is = u.openStream();
+            try {
+                providerIndex.read(is);
+            } finally {
+                is.close();
+            }
+            return providerIndex;
+        } catch (IOException ex) {
+            debugPrintln("exception caught while reading " + u + ": " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * Return the first provider class name listed in the given service file.
+     */
+    private String readProvider(URL u) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(u.openStream(), "UTF-8"));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if (line.length() > 0) {
+                    return line;
+                }
+            }
+            return null;
+        } finally {
+            br.close();
+        }
+    }
+
+    private ScanIndex createScanIndex() {
+        try {
+            if ("false".equals(System.getProperty(SCAN_INDEX))) {
+                return null;
+            }
+        } catch (Throwable t) { }
+        ScanIndex idx = new ScanIndex(bundleContext.getDataFile(SCAN_INDEX_FILE));
+        idx.load();
+        return idx;
+    }
+
+    private void saveScanIndex() {
+        ScanIndex idx = index;
+        if (idx != null) {
+            try {
+                idx.save();
+            } catch (IOException e) {
+                debugPrintln("unable to save the scan index: " + e);
+            }
+        }
+    }
+
+    /**
+     * Scan the given bundles on a worker pool when {@link #SCAN_THREADS} asks
+     * for it.  Results are only published afterwards, in bundle order, as part
+     * of the startup batch; bundles that failed to scan are simply scanned
+     * again at that point.
+     */
+    private void scanAll(List<Bundle> bundles) throws InterruptedException {
+        if (bundles.size() < 2) {
+            return;
+        }
+        ExecutorService executor = createScanExecutor();
+        if (executor == null) {
+            return;
+        }
+        debugPrintln("scanning " + bundles.size() + " bundles in parallel");
+        try {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(bundles.size());
+            for (final Bundle bundle : bundles) {
+                tasks.add(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        scanned.put(bundle.getBundleId(), scan(bundle));
+                        return null;
+                    }
+                });
+            }
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                if (!future.isCancelled()) {
+                    try {
+                        future.get();
+                    } catch (Exception e) {
+                        debugPrintln("exception caught while scanning bundle: " + e.getCause());
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private ExecutorService createScanExecutor() {
+        String prop = null;
+        try {
+            prop = System.getProperty(SCAN_THREADS);
+        } catch (Throwable t) { }
+        if (prop == null) {
+            return null;
+        }
+        prop = prop.trim();
+        if ("virtual".equalsIgnoreCase(prop)) {
+            try {
+                Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) m.invoke(null);
+            } catch (Throwable t) {
+                debugPrintln("virtual threads not available, using a platform thread pool");
+                return newScanPool(Runtime.getRuntime().availableProcessors());
+            }
+        }
+        int threads;
+        try {
+            threads = Integer.parseInt(prop);
+        } catch (NumberFormatException e) {
+            debugPrintln("invalid value for " + SCAN_THREADS + ": " + prop);
+            return null;
+        }
+        return threads > 1 ? newScanPool(threads) : null;
+    }
+
+    private ExecutorService newScanPool(int threads) {
+        final String prefix = "Spec(" + bundleContext.getBundle().getBundleId() + ") scanner ";
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Subclasses replacing {@link #register(Bundle)} do not consume the
+     * service files, so scanning them upfront would only be wasted work.
+     */
+    private boolean scansServices() {
+        for (Class<?> c = getClass(); c != Activator.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod("register", Bundle.class);
+                return false;
+            } catch (NoSuchMethodException e) {
+                // keep looking
+            }
+        }
+        return true;
     }
 
     protected void unregister(long bundleId) {
         Map<String, Callable<Class>> map = factories.remove(bundleId);
         if (map != null) {
+            Map<String, List<Callable<Class>>> batch = new HashMap<String, List<Callable<Class>>>();
             for (Map.Entry<String, Callable<Class>> entry : map.entrySet()) {
                 debugPrintln("unregistering service for key " + entry.getKey() + " with value " + entry.getValue());
-                OsgiLocator.unregister(entry.getKey(), entry.getValue());
+                batch.put(entry.getKey(), Collections.singletonList(entry.getValue()));
+            }
+            OsgiLocator.unregisterAll(batch);
+            for (Callable<Class> factory : map.values()) {
+                if (factory instanceof BundleFactoryLoader) {
+                    ((BundleFactoryLoader) factory).release();
+                }
             }
         }
     }
 
-    private class BundleFactoryLoader implements Callable<Class> {
+    /**
+     * Region of the bundle the thread context class loader belongs to.
+     */
+    private class CallerRegion implements Regional {
+        public String getRegion() {
+            ClassLoader cl = Thread.currentThread().getContextClassLoader();
+            if (!(cl instanceof BundleReference)) {
+                return null;
+            }
+            Bundle bundle = ((BundleReference) cl).getBundle();
+            if (bundle == null) {
+                return null;
+            }
+            String region = regions.get(bundle);
+            if (region == null) {
+                try {
+                    region = Activator.this.getRegion(bundle);
+                } catch (IllegalStateException e) {
+                    // uninstalled meanwhile
+                    return null;
+                }
+                region = region != null ? region : "";
+                regions.put(bundle, region);
+            }
+            return region.length() > 0 ? region : null;
+        }
+    }
+
+    /**
+     * Bundle event handled by the indexer.  Lookups finding no provider for
+     * one of the factory ids the bundle provides wait from the time the event
+     * is queued until it has been handled, except the ones made by the indexer
+     * itself.
+     */
+    private class IndexTask implements Runnable {
+        private final BundleEvent event;
+        private final CountDownLatch barrier;
+
+        IndexTask(BundleEvent event) {
+            this.event = event;
+            this.barrier = OsgiLocator.addBarrier(getFactoryIds(event));
+        }
+
+        public void run() {
+            OsgiLocator.setUpdating(true);
+            try {
+                handleEvent(event);
+            } catch (Throwable t) {
+                debugPrintln("exception caught while handling bundle event: " + t);
+            } finally {
+                OsgiLocator.setUpdating(false);
+                release();
+            }
+        }
+
+        void release() {
+            OsgiLocator.releaseBarrier(barrier);
+        }
+    }
+
+    private class BundleFactoryLoader implements Callable<Class>, Ranked, Regional, ClassSpace {
         private final String factoryId;
+        private final String className;
         private final URL u;
         private final Bundle bundle;
+        private final int ranking;
+        private final String region;
+        private final Map<String, ClassLoader> imports;
+        private final Map<Class<?>, Boolean> compatibility = new WeakHashMap<Class<?>, Boolean>();
         private volatile Class<?> clazz;
 
-        public BundleFactoryLoader(String factoryId, URL u, Bundle bundle) {
+        /**
+         * Whether the factory has been unregistered, guarded by this loader.
+         */
+        private boolean released;
+
+        public BundleFactoryLoader(String factoryId, String className, URL u, Bundle bundle, int ranking,
+                                   String region, Map<String, ClassLoader> imports) {
             this.factoryId = factoryId;
+            this.className = className;
             this.u = u;
             this.bundle = bundle;
+            this.ranking = ranking;
+            this.region = region;
+            this.imports = imports;
+        }
+
+        public int getRanking() {
+            return ranking;
+        }
+
+        public String getRegion() {
+            return region;
+        }
+
+        public Boolean isCompatible(Class<?> factoryClass) {
+            String name = factoryClass.getName();
+            int dot = name.lastIndexOf('.');
+            // a package wired to the very loader of the factory class is a match,
+            // anything else (system bundle, boot delegation, embedded or required
+            // packages) is checked against the bundle class space once
+            ClassLoader loader = imports != null && dot > 0 ? imports.get(name.substring(0, dot)) : null;
+            if (loader != null && loader == factoryClass.getClassLoader()) {
+                return Boolean.TRUE;
+            }
+            synchronized (compatibility) {
+                Boolean compatible = compatibility.get(factoryClass);
+                if (compatible != null) {
+                    return compatible;
+                }
+            }
+            Boolean compatible;
+            try {
+                compatible = Boolean.valueOf(bundle.loadClass(name) == factoryClass);
+            } catch (ClassNotFoundException e) {
+                compatible = Boolean.FALSE;
+            } catch (Throwable t) {
+                // e.g. the bundle has been uninstalled, let the lookup decide
+                return null;
+            }
+            synchronized (compatibility) {
+                compatibility.put(factoryClass, compatible);
+            }
+            return compatible;
         }
 
         public Class call() throws Exception {
@@ -153,20 +1041,14 @@ public class Activator implements BundleActivator, SynchronousBundleListener {
                     synchronized (this) {
                         if (clazz == null){
                             debugPrintln("creating factory for key: " + factoryId);
-                            BufferedReader br = new BufferedReader(new InputStreamReader(u.openStream(), "UTF-8"));
-                            try {
-                                String factoryClassName = br.readLine();
-                                while (factoryClassName != null) {
-                                    factoryClassName = factoryClassName.trim();
-                                    if (factoryClassName.charAt(0) != '#') {
-                                        debugPrintln("factory implementation: " + factoryClassName);
-                                        clazz = bundle.loadClass(factoryClassName);
-                                        return clazz;
-                                    }
-                                    factoryClassName = br.readLine();
-                                }
-                            } finally {
-                                br.close();
+                            String factoryClassName = className != null ? className : readProvider(u);
+                            if (factoryClassName == null) {
+                                throw new ClassNotFoundException("No provider listed in " + u);
+                            }
+                            debugPrintln("factory implementation: " + factoryClassName);
+                            clazz = bundle.loadClass(factoryClassName);
+                            if (!released) {
+                                Instantiator.retain(clazz);
                             }
                         }
                     }
@@ -181,20 +1063,33 @@ public class Activator implements BundleActivator, SynchronousBundleListener {
             }
         }
 
+        /**
+         * Stop caching the constructors of the factory once it is unregistered.
+         */
+        synchronized void release() {
+            if (!released) {
+                released = true;
+                if (clazz != null) {
+                    Instantiator.release(clazz);
+                }
+            }
+        }
+
         @Override
         public String toString() {
-           return u.toString();
+           return (className != null ? className : u.toString()) + " from bundle " + bundle.getBundleId();
         }
 
         @Override
         public int hashCode() {
-           return u.hashCode();
+           return 31 * (int) bundle.getBundleId() + factoryId.hashCode();
         }
 
         @Override
         public boolean equals(Object obj) {
             if (obj instanceof BundleFactoryLoader) {
-                return u.equals(((BundleFactoryLoader) obj).u);
+                BundleFactoryLoader other = (BundleFactoryLoader) obj;
+                return bundle.getBundleId() == other.bundle.getBundleId() && factoryId.equals(other.factoryId);
             } else {
                 return false;
             }
@@ -0,0 +1,40 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+/**
+ * Implemented by factories registered in the {@link OsgiLocator} that know
+ * upfront, usually from the wiring of their bundle, which class loader
+ * provides each package they import.  Lookups use it to skip incompatible
+ * providers without loading their classes.
+ *
+ * Each spec bundle embeds its own copy of this interface.  The factories
+ * looked up in the registry of another bundle, see {@link SharedRegistry},
+ * implement the copy of that bundle, so lookups made through a shared
+ * registry do not see it and check the compatibility by loading the provider
+ * class instead.
+ */
+public interface ClassSpace {
+
+    /**
+     * @return whether the provider sees the same class as the given factory
+     *         class, or <code>null</code> if it can not be told without
+     *         loading the provider class
+     */
+    Boolean isCompatible(Class<?> factoryClass);
+
+}
@@ -0,0 +1,115 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import java.util.Dictionary;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationEvent;
+import org.osgi.service.cm.ConfigurationListener;
+
+/**
+ * Applies the {@link LocatorConfiguration#PID} configuration of Configuration
+ * Admin to the locator.
+ *
+ * Every spec bundle embeds its own locator, and a managed service would only
+ * ever be given the configuration once it is bound to the first of them, so
+ * the configuration is read directly whenever Configuration Admin comes up or
+ * reports a change to it.  The Configuration Admin API is imported optionally
+ * by the spec bundles, so the activator only loads this class once it has
+ * checked that the import is wired.
+ */
+class ConfigurationTracker implements ConfigurationListener, ServiceListener {
+
+    private static final String FILTER = "(" + Constants.OBJECTCLASS + "=" + ConfigurationAdmin.class.getName() + ")";
+
+    private final BundleContext bundleContext;
+    private ServiceRegistration registration;
+
+    ConfigurationTracker(BundleContext bundleContext) {
+        this.bundleContext = bundleContext;
+    }
+
+    synchronized void open() throws InvalidSyntaxException {
+        bundleContext.addServiceListener(this, FILTER);
+        registration = bundleContext.registerService(ConfigurationListener.class.getName(), this, null);
+        update();
+    }
+
+    synchronized void close() {
+        bundleContext.removeServiceListener(this);
+        if (registration != null) {
+            try {
+                registration.unregister();
+            } catch (IllegalStateException e) {
+                // already unregistered
+            }
+            registration = null;
+        }
+    }
+
+    public void configurationEvent(ConfigurationEvent event) {
+        if (LocatorConfiguration.PID.equals(event.getPid())) {
+            update();
+        }
+    }
+
+    public void serviceChanged(ServiceEvent event) {
+        if (event.getType() == ServiceEvent.REGISTERED) {
+            update();
+        }
+    }
+
+    /**
+     * Read the configuration and apply it, leaving the current settings alone
+     * if Configuration Admin is not there or can not be asked.
+     */
+    private void update() {
+        ServiceReference reference = bundleContext.getServiceReference(ConfigurationAdmin.class.getName());
+        if (reference == null) {
+            return;
+        }
+        try {
+            ConfigurationAdmin admin = (ConfigurationAdmin) bundleContext.getService(reference);
+            if (admin == null) {
+                return;
+            }
+            Configuration[] configurations = admin.listConfigurations("(" + Constants.SERVICE_PID + "="
+                                                                      + LocatorConfiguration.PID + ")");
+            Dictionary<?, ?> properties = configurations != null && configurations.length > 0
+                    ? configurations[0].getProperties() : null;
+            OsgiLocator.updateConfiguration(properties);
+        } catch (Exception e) {
+            // keep the current settings
+        } finally {
+            try {
+                bundleContext.ungetService(reference);
+            } catch (IllegalStateException e) {
+                // this bundle is stopping
+            }
+        }
+    }
+
+}
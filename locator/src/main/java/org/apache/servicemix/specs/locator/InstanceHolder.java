@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the provider instances handed out for one factory according to its
+ * {@link InstanceStrategy}.  A cached instance is only reused while its class
+ * is still the provider resolved by the locator, so a newly registered
+ * provider replaces it on the next lookup.  The locator {@link #clear()
+ * clears} a holder when evicting it, so that no instance outlives the
+ * registration of its provider, not even in the thread locals of long lived
+ * threads.
+ */
+abstract class InstanceHolder {
+
+    static InstanceHolder create(InstanceStrategy strategy, int poolSize) {
+        switch (strategy) {
+            case THREAD_LOCAL:
+                return new PerThread();
+            case POOLED:
+                return new Pooled(poolSize);
+            default:
+                return new Singleton();
+        }
+    }
+
+    abstract Object acquire(Class<?> providerClass) throws Exception;
+
+    /**
+     * Hand back an instance obtained from {@link #acquire(Class)}.
+     */
+    void release(Object instance) {
+    }
+
+    /**
+     * Drop the cached instances, the holder being evicted.
+     */
+    abstract void clear();
+
+    static class Singleton extends InstanceHolder {
+        private volatile Object instance;
+
+        Object acquire(Class<?> providerClass) throws Exception {
+            Object i = instance;
+            if (i == null || i.getClass() != providerClass) {
+                synchronized (this) {
+                    i = instance;
+                    if (i == null || i.getClass() != providerClass) {
+                        i = Instantiator.newInstance(providerClass);
+                        instance = i;
+                    }
+                }
+            }
+            return i;
+        }
+
+        synchronized void clear() {
+            instance = null;
+        }
+    }
+
+    /**
+     * The thread locals only reference a {@link Slot}, which the holder
+     * empties when cleared.  The slots of the threads that died are
+     * forgotten when another thread gets its own.
+     */
+    static class PerThread extends InstanceHolder {
+        private final ThreadLocal<Slot> slot = new ThreadLocal<Slot>();
+        private final Queue<Slot> slots = new ConcurrentLinkedQueue<Slot>();
+        private volatile boolean cleared;
+
+        Object acquire(Class<?> providerClass) throws Exception {
+            Slot s = slot.get();
+            if (s == null) {
+                s = new Slot(Thread.currentThread());
+                slot.set(s);
+                for (Iterator<Slot> it = slots.iterator(); it.hasNext();) {
+                    if (it.next().get() == null) {
+                        it.remove();
+                    }
+                }
+                slots.add(s);
+            }
+            Object i = s.instance;
+            if (i == null || i.getClass() != providerClass) {
+                i = Instantiator.newInstance(providerClass);
+                s.instance = i;
+                if (cleared) {
+                    // evicted meanwhile
+                    s.instance = null;
+                }
+            }
+            return i;
+        }
+
+        void clear() {
+            cleared = true;
+            for (Slot s : slots) {
+                s.instance = null;
+            }
+            slots.clear();
+        }
+    }
+
+    static class Slot extends WeakReference<Thread> {
+        volatile Object instance;
+
+        Slot(Thread thread) {
+            super(thread);
+        }
+    }
+
+    /**
+     * Only instances of the provider currently resolved are handed back to
+     * the pool, so that it never keeps a replaced provider alive.
+     */
+    static class Pooled extends InstanceHolder {
+        private final ConcurrentLinkedQueue<Object> pool = new ConcurrentLinkedQueue<Object>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final int maxSize;
+        private volatile Class<?> providerClass;
+        private volatile boolean cleared;
+
+        Pooled(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        Object acquire(Class<?> providerClass) throws Exception {
+            this.providerClass = providerClass;
+            Object i;
+            while ((i = pool.poll()) != null) {
+                size.decrementAndGet();
+                if (i.getClass() == providerClass) {
+                    return i;
+                }
+                // stale instance from a provider that has been replaced
+            }
+            return Instantiator.newInstance(providerClass);
+        }
+
+        void release(Object instance) {
+            if (cleared || instance.getClass() != providerClass) {
+                return;
+            }
+            if (size.incrementAndGet() <= maxSize) {
+                pool.offer(instance);
+                if (cleared) {
+                    // evicted meanwhile
+                    pool.clear();
+                }
+            } else {
+                size.decrementAndGet();
+            }
+        }
+
+        void clear() {
+            cleared = true;
+            providerClass = null;
+            pool.clear();
+        }
+    }
+
+}
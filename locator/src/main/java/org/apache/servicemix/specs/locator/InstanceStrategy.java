@@ -0,0 +1,49 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+/**
+ * How {@link OsgiLocator#locateInstance(Class, String)} hands out provider
+ * instances for a given factory id.
+ */
+public enum InstanceStrategy {
+
+    /**
+     * A new instance is created for each lookup.  This is the default.
+     */
+    NEW,
+
+    /**
+     * One instance is created and shared by all callers.  Only suitable for
+     * thread-safe factories.
+     */
+    SINGLETON,
+
+    /**
+     * Each thread gets its own instance, created on first use.  The instances
+     * are dropped when the provider is unregistered.
+     */
+    THREAD_LOCAL,
+
+    /**
+     * Instances are borrowed from a bounded pool and handed back with
+     * {@link OsgiLocator#releaseInstance(Class, String, Object)}.  The pool is
+     * emptied when the provider is unregistered.
+     */
+    POOLED
+
+}
@@ -0,0 +1,166 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Creates provider instances, reusing the constructors of the providers
+ * registered in the {@link OsgiLocator}.
+ *
+ * The constructors of a provider class are cached once the class has been
+ * loaded for a registered factory, see {@link #retain(Class)}, and strongly
+ * held until all the registrations of the class are gone, see
+ * {@link #release(Class)}.  The cache thus never keeps an uninstalled bundle
+ * alive.  Other classes, e.g. providers found on the class path by the spec
+ * finders or through the registry shared by another spec bundle, are
+ * instantiated with plain reflection.  Public constructors of public classes
+ * are made accessible when cached so that the access checks done by
+ * {@link Class#newInstance()} on each call are skipped.
+ */
+public final class Instantiator {
+
+    private static final Class<?>[] NO_PARAMETERS = new Class<?>[0];
+
+    private static final List<Class<?>> NO_PARAMETER_TYPES = Collections.emptyList();
+
+    private static final ConcurrentMap<Class<?>, Constructors> constructors = new ConcurrentHashMap<Class<?>, Constructors>();
+
+    /**
+     * Number of registrations of each cached class, guarded by itself.
+     */
+    private static final Map<Class<?>, Integer> retained = new HashMap<Class<?>, Integer>();
+
+    private Instantiator() {
+    }
+
+    /**
+     * Drop-in replacement for {@link Class#newInstance()}.  Checked exceptions
+     * thrown by the constructor are reported as an {@link InstantiationException}
+     * instead of being rethrown undeclared.
+     */
+    public static <T> T newInstance(Class<T> type) throws InstantiationException, IllegalAccessException {
+        Constructor<T> constructor;
+        try {
+            constructor = getConstructor(type, NO_PARAMETERS, NO_PARAMETER_TYPES);
+        } catch (NoSuchMethodException e) {
+            throw (InstantiationException) new InstantiationException(type.getName()).initCause(e);
+        }
+        try {
+            return constructor.newInstance();
+        } catch (InvocationTargetException e) {
+            Throwable t = e.getCause();
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw (InstantiationException) new InstantiationException(String.valueOf(t)).initCause(t);
+        }
+    }
+
+    /**
+     * Drop-in replacement for <code>type.getConstructor(parameterTypes).newInstance(args)</code>.
+     */
+    public static <T> T newInstance(Class<T> type, Class<?>[] parameterTypes, Object... args)
+            throws NoSuchMethodException, InstantiationException, IllegalAccessException, InvocationTargetException {
+        return getConstructor(type, parameterTypes, null).newInstance(args);
+    }
+
+    /**
+     * Start caching the constructors of the given provider class, loaded for
+     * a registered factory.
+     */
+    static void retain(Class<?> type) {
+        synchronized (retained) {
+            Integer count = retained.get(type);
+            retained.put(type, Integer.valueOf(count != null ? count.intValue() + 1 : 1));
+            if (count == null) {
+                constructors.put(type, new Constructors());
+            }
+        }
+    }
+
+    /**
+     * Stop caching the constructors of the given provider class once all the
+     * factories it has been {@link #retain(Class) retained} for are
+     * unregistered.
+     */
+    static void release(Class<?> type) {
+        synchronized (retained) {
+            Integer count = retained.get(type);
+            if (count == null) {
+                return;
+            }
+            if (count.intValue() > 1) {
+                retained.put(type, Integer.valueOf(count.intValue() - 1));
+            } else {
+                retained.remove(type);
+                constructors.remove(type);
+            }
+        }
+    }
+
+    static boolean isCached(Class<?> type) {
+        return constructors.containsKey(type);
+    }
+
+    /**
+     * @param key the parameter types as a list, or <code>null</code> to build
+     *            it only if the constructors of the class are cached
+     */
+    private static <T> Constructor<T> getConstructor(Class<T> type, Class<?>[] parameterTypes, List<Class<?>> key)
+            throws NoSuchMethodException {
+        Constructors cached = constructors.get(type);
+        if (cached == null) {
+            return parameterTypes.length == 0 ? type.getDeclaredConstructor() : type.getConstructor(parameterTypes);
+        }
+        if (key == null) {
+            key = Arrays.<Class<?>>asList(parameterTypes);
+        }
+        Constructor<T> c = (Constructor<T>) cached.get(key);
+        if (c == null) {
+            c = parameterTypes.length == 0 ? type.getDeclaredConstructor() : type.getConstructor(parameterTypes);
+            if (Modifier.isPublic(type.getModifiers()) && Modifier.isPublic(c.getModifiers())) {
+                try {
+                    c.setAccessible(true);
+                } catch (SecurityException e) {
+                    // keep the regular access checks
+                }
+            }
+            cached.put(key, c);
+        }
+        return c;
+    }
+
+    /**
+     * Constructors of a provider class, by parameter types.
+     */
+    private static class Constructors extends ConcurrentHashMap<List<Class<?>>, Constructor<?>> {
+    }
+
+}
@@ -0,0 +1,225 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Snapshot of the settings of the locator: the lookup timeout, the debug
+ * flag, the instance strategies and the per factory id overrides, i.e. the
+ * system properties named after a factory id and giving the class name of
+ * the provider to use.
+ *
+ * The system properties are backed by a synchronized table shared with the
+ * rest of the JVM, so these settings are copied once and lookups only read
+ * the fields of the current snapshot.  Changes made to the system properties
+ * afterwards are seen once {@link OsgiLocator#refreshConfiguration()} is
+ * called, which the activator does on start and which is also exposed through
+ * JMX.  The settings and overrides of the {@link #PID} configuration in
+ * Configuration Admin, when there is one, take precedence and are applied as
+ * soon as they change.
+ *
+ * Since any property may be named after a factory id, all the system
+ * properties which are not settings are kept as overrides.  The spec finders
+ * still read the system property themselves when falling back to the class
+ * path, as the specs require.
+ */
+public final class LocatorConfiguration {
+
+    public static final String DEBUG = "org.apache.servicemix.specs.debug";
+
+    /**
+     * Persistent id of the Configuration Admin configuration holding the
+     * settings, keyed like the system properties.
+     */
+    public static final String PID = "org.apache.servicemix.specs";
+
+    /**
+     * Prefix of the properties Configuration Admin adds to the configuration,
+     * which are not overrides.
+     */
+    private static final String SERVICE_PREFIX = "service.";
+
+    private static volatile Map<String, String> managed = Collections.emptyMap();
+
+    private static volatile Map<String, String> managedOverrides = Collections.emptyMap();
+
+    private static volatile LocatorConfiguration current = load();
+
+    private final Map<String, String> properties;
+    private final Map<String, String> overrides;
+
+    /**
+     * Instance strategies parsed so far, dropped with the snapshot.
+     */
+    private final ConcurrentMap<String, InstanceStrategy> strategies = new ConcurrentHashMap<String, InstanceStrategy>();
+    private final long timeout;
+    private final boolean debug;
+
+    private LocatorConfiguration(Map<String, String> properties, Map<String, String> overrides) {
+        this.properties = properties;
+        this.overrides = overrides;
+        long timeout = OsgiLocator.DEFAULT_TIMEOUT;
+        try {
+            String prop = properties.get(OsgiLocator.TIMEOUT);
+            if (prop != null) {
+                timeout = Long.parseLong(prop);
+            }
+        } catch (NumberFormatException e) { }
+        this.timeout = timeout;
+        String prop = properties.get(DEBUG);
+        this.debug = prop != null && !"false".equals(prop);
+    }
+
+    public static LocatorConfiguration get() {
+        return current;
+    }
+
+    /**
+     * Take a new snapshot of the system properties.
+     */
+    static LocatorConfiguration refresh() {
+        LocatorConfiguration configuration = load();
+        current = configuration;
+        return configuration;
+    }
+
+    /**
+     * Replace the settings coming from Configuration Admin, <code>null</code>
+     * if the configuration has been deleted, and take a new snapshot.
+     */
+    static LocatorConfiguration update(Dictionary<?, ?> configuration) {
+        Map<String, String> properties = new HashMap<String, String>();
+        Map<String, String> overrides = new HashMap<String, String>();
+        if (configuration != null) {
+            for (Enumeration<?> e = configuration.keys(); e.hasMoreElements();) {
+                Object key = e.nextElement();
+                Object value = configuration.get(key);
+                if (!(key instanceof String) || value == null) {
+                    continue;
+                }
+                if (isSetting((String) key)) {
+                    properties.put((String) key, value.toString());
+                } else if (!((String) key).startsWith(SERVICE_PREFIX)) {
+                    overrides.put((String) key, value.toString());
+                }
+            }
+        }
+        managed = Collections.unmodifiableMap(properties);
+        managedOverrides = Collections.unmodifiableMap(overrides);
+        return refresh();
+    }
+
+    private static LocatorConfiguration load() {
+        Map<String, String> properties = new HashMap<String, String>();
+        Map<String, String> overrides = new HashMap<String, String>();
+        try {
+            Properties system = System.getProperties();
+            synchronized (system) {
+                for (Map.Entry<Object, Object> entry : system.entrySet()) {
+                    if (entry.getKey() instanceof String && entry.getValue() instanceof String) {
+                        String key = (String) entry.getKey();
+                        if (isSetting(key)) {
+                            properties.put(key, (String) entry.getValue());
+                        } else {
+                            overrides.put(key, (String) entry.getValue());
+                        }
+                    }
+                }
+            }
+        } catch (Throwable t) { }
+        properties.putAll(managed);
+        overrides.putAll(managedOverrides);
+        return new LocatorConfiguration(Collections.unmodifiableMap(properties), Collections.unmodifiableMap(overrides));
+    }
+
+    private static boolean isSetting(String key) {
+        return OsgiLocator.TIMEOUT.equals(key) || DEBUG.equals(key) || key.startsWith(OsgiLocator.INSTANCE_STRATEGY);
+    }
+
+    /**
+     * @return the default number of milliseconds a lookup waits for a provider
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    /**
+     * @return the strategy configured for the given factory id, or
+     *         {@link InstanceStrategy#NEW} if there is none or it is invalid
+     */
+    public InstanceStrategy getInstanceStrategy(String factoryId) {
+        InstanceStrategy strategy = strategies.get(factoryId);
+        if (strategy == null) {
+            strategy = InstanceStrategy.NEW;
+            String value = properties.get(OsgiLocator.INSTANCE_STRATEGY + factoryId);
+            if (value != null) {
+                int idx = value.indexOf(':');
+                String name = idx >= 0 ? value.substring(0, idx) : value;
+                try {
+                    strategy = InstanceStrategy.valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+                } catch (IllegalArgumentException e) {
+                    // keep the default
+                }
+            }
+            strategies.put(factoryId, strategy);
+        }
+        return strategy;
+    }
+
+    /**
+     * @return the pool size configured for the given factory id, as in
+     *         <code>pooled:16</code>, or {@link OsgiLocator#DEFAULT_POOL_SIZE}
+     */
+    public int getPoolSize(String factoryId) {
+        String value = properties.get(OsgiLocator.INSTANCE_STRATEGY + factoryId);
+        int idx = value != null ? value.indexOf(':') : -1;
+        if (idx >= 0) {
+            try {
+                return Integer.parseInt(value.substring(idx + 1).trim());
+            } catch (NumberFormatException e) {
+                // keep the default
+            }
+        }
+        return OsgiLocator.DEFAULT_POOL_SIZE;
+    }
+
+    public String getProperty(String name) {
+        return properties.get(name);
+    }
+
+    /**
+     * @return the class name of the provider to use for the given factory id,
+     *         or <code>null</code> if it is not overridden
+     */
+    public String getOverride(String factoryId) {
+        return overrides.get(factoryId);
+    }
+
+}
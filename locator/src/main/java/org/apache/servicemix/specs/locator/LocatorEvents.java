@@ -0,0 +1,312 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Java Flight Recorder events for provider lookups.
+ *
+ * Two event types are defined: <code>org.apache.servicemix.specs.Lookup</code>,
+ * emitted by the {@link OsgiLocator} lookups with their duration and whether
+ * the provider came from the registry or was selected by the system property
+ * overriding the factory id, and <code>org.apache.servicemix.specs.Resolution</code>,
+ * emitted each time a provider is resolved with the {@link ResolutionSource}
+ * it came from.  Resolutions are reported by the {@link OsgiLocator} for the
+ * registry and by the {@link ProviderResolver} for the class path, with their
+ * duration and the number of candidates considered: the registered providers
+ * for the registry, the lookup steps tried for the class path.
+ *
+ * The locator is compiled for JVMs without JFR, so the event types are
+ * created at runtime through <code>jdk.jfr.EventFactory</code>, loaded from the
+ * system class loader so that bundles do not need to import it.  A
+ * <code>jdk.jfr.FlightRecorderListener</code> tracks whether any recording is
+ * running: until one is, all methods return after reading a volatile flag,
+ * and they are no-ops on JVMs without JFR.  The event types are created and
+ * registered by each copy of the locator once, when the first recording
+ * starts.  While recordings run, no event is allocated unless the events are
+ * enabled in their settings.
+ */
+final class LocatorEvents {
+
+    /**
+     * Whether a recording is running, see {@link RecorderListener}.
+     */
+    private static volatile boolean recording;
+
+    private static volatile EventKind lookup;
+    private static volatile EventKind resolution;
+
+    /**
+     * Whether the event types have been created, guarded by the class.
+     */
+    private static boolean created;
+
+    private static Method begin;
+    private static Method end;
+    private static Method commit;
+    private static Method set;
+
+    static {
+        try {
+            ClassLoader cl = ClassLoader.getSystemClassLoader();
+            Class<?> eventClass = Class.forName("jdk.jfr.Event", false, cl);
+            begin = eventClass.getMethod("begin");
+            end = eventClass.getMethod("end");
+            commit = eventClass.getMethod("commit");
+            set = eventClass.getMethod("set", int.class, Object.class);
+            Class<?> recorderClass = Class.forName("jdk.jfr.FlightRecorder", false, cl);
+            Class<?> listenerClass = Class.forName("jdk.jfr.FlightRecorderListener", false, cl);
+            Object listener = Proxy.newProxyInstance(cl, new Class<?>[] { listenerClass },
+                                                     new RecorderListener(recorderClass));
+            // called back at once if the recorder is already initialized
+            recorderClass.getMethod("addListener", listenerClass).invoke(null, listener);
+        } catch (Throwable t) {
+            // no JFR, nothing is ever recorded
+        }
+    }
+
+    private LocatorEvents() {
+    }
+
+    /**
+     * Start a lookup event, returning <code>null</code> if it is not recorded.
+     */
+    static Object beginLookup() {
+        return recording ? begin(lookup) : null;
+    }
+
+    /**
+     * Commit a lookup event, the source being <code>REGISTRY</code>,
+     * <code>OVERRIDE</code> or <code>NONE</code> when nothing was found.
+     */
+    static void commitLookup(Object event, String factoryId, int candidates, String source, long timeoutWait) {
+        if (event != null) {
+            invoke(end, event);
+            invoke(set, event, 0, factoryId);
+            invoke(set, event, 1, candidates);
+            invoke(set, event, 2, !"NONE".equals(source));
+            invoke(set, event, 3, source);
+            invoke(set, event, 4, timeoutWait);
+            invoke(commit, event);
+        }
+    }
+
+    /**
+     * Start a resolution event, returning <code>null</code> if it is not
+     * recorded.
+     */
+    static Object beginResolution() {
+        return recording ? begin(resolution) : null;
+    }
+
+    /**
+     * Commit a resolution event.  A <code>null</code> event, for resolutions
+     * reported without having been started, is created and committed without
+     * duration.
+     */
+    static void commitResolution(Object event, String factoryId, ResolutionSource source, int candidates) {
+        if (event == null) {
+            EventKind kind = resolution;
+            event = recording && kind != null ? kind.newEvent() : null;
+        } else {
+            invoke(end, event);
+        }
+        if (event != null) {
+            invoke(set, event, 0, factoryId);
+            invoke(set, event, 1, source.name());
+            invoke(set, event, 2, candidates);
+            invoke(commit, event);
+        }
+    }
+
+    private static Object begin(EventKind kind) {
+        Object event = kind != null ? kind.newEvent() : null;
+        if (event != null) {
+            invoke(begin, event);
+        }
+        return event;
+    }
+
+    /**
+     * Create and register the event types, the first time a recording starts.
+     */
+    private static synchronized void createEventTypes() {
+        if (created) {
+            return;
+        }
+        created = true;
+        try {
+            Builder b = new Builder(ClassLoader.getSystemClassLoader());
+            lookup = b.create("org.apache.servicemix.specs.Lookup", "Spec Provider Lookup",
+                    "Lookup of a provider registered by a bundle",
+                    b.field(String.class, "factoryId", "Factory Id", null),
+                    b.field(int.class, "candidates", "Candidates", null),
+                    b.field(boolean.class, "found", "Found", null),
+                    b.field(String.class, "source", "Source", null),
+                    b.field(long.class, "timeoutWait", "Timeout Wait", "MILLISECONDS"));
+            resolution = b.create("org.apache.servicemix.specs.Resolution", "Spec Provider Resolution",
+                    "Provider resolved by a spec finder",
+                    b.field(String.class, "factoryId", "Factory Id", null),
+                    b.field(String.class, "source", "Source", null),
+                    b.field(int.class, "candidates", "Candidates", null));
+        } catch (Throwable t) {
+            lookup = null;
+            resolution = null;
+        }
+    }
+
+    private static void invoke(Method m, Object target, Object... args) {
+        try {
+            m.invoke(target, args);
+        } catch (Throwable t) {
+            // never let monitoring break a lookup
+        }
+    }
+
+    /**
+     * Reflective <code>jdk.jfr.FlightRecorderListener</code>, updating the
+     * recording flag each time a recording changes state.
+     */
+    private static class RecorderListener implements InvocationHandler {
+        private final Class<?> recorderClass;
+
+        RecorderListener(Class<?> recorderClass) {
+            this.recorderClass = recorderClass;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("recordingStateChanged".equals(name) || "recorderInitialized".equals(name)) {
+                update();
+                return null;
+            } else if ("equals".equals(name)) {
+                return Boolean.valueOf(proxy == args[0]);
+            } else if ("hashCode".equals(name)) {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            } else if ("toString".equals(name)) {
+                return "LocatorEvents listener";
+            }
+            return null;
+        }
+
+        private void update() {
+            boolean running = false;
+            try {
+                Object recorder = recorderClass.getMethod("getFlightRecorder").invoke(null);
+                List<?> recordings = (List<?>) recorder.getClass().getMethod("getRecordings").invoke(recorder);
+                for (Object r : recordings) {
+                    if ("RUNNING".equals(String.valueOf(r.getClass().getMethod("getState").invoke(r)))) {
+                        running = true;
+                        break;
+                    }
+                }
+            } catch (Throwable t) {
+                // keep recording nothing
+            }
+            if (running) {
+                createEventTypes();
+            }
+            recording = running;
+        }
+    }
+
+    private static class EventKind {
+        private final Object factory;
+        private final Method newEvent;
+        private final Object type;
+        private final Method isEnabled;
+
+        EventKind(Object factory, Method newEvent, Object type, Method isEnabled) {
+            this.factory = factory;
+            this.newEvent = newEvent;
+            this.type = type;
+            this.isEnabled = isEnabled;
+        }
+
+        Object newEvent() {
+            try {
+                if (Boolean.TRUE.equals(isEnabled.invoke(type))) {
+                    return newEvent.invoke(factory);
+                }
+            } catch (Throwable t) {
+                // ignore
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Reflective access to the <code>jdk.jfr</code> event definition API.
+     */
+    private static class Builder {
+        private final Class<?> name;
+        private final Class<?> label;
+        private final Class<?> description;
+        private final Class<?> category;
+        private final Class<?> timespan;
+        private final Constructor<?> annotation;
+        private final Constructor<?> valueDescriptor;
+        private final Method create;
+
+        Builder(ClassLoader cl) throws Exception {
+            name = Class.forName("jdk.jfr.Name", false, cl);
+            label = Class.forName("jdk.jfr.Label", false, cl);
+            description = Class.forName("jdk.jfr.Description", false, cl);
+            category = Class.forName("jdk.jfr.Category", false, cl);
+            timespan = Class.forName("jdk.jfr.Timespan", false, cl);
+            Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement", false, cl);
+            annotation = annotationClass.getConstructor(Class.class, Object.class);
+            valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor", false, cl)
+                    .getConstructor(Class.class, String.class, List.class);
+            create = Class.forName("jdk.jfr.EventFactory", false, cl).getMethod("create", List.class, List.class);
+        }
+
+        Object field(Class<?> type, String fieldName, String fieldLabel, String unit) throws Exception {
+            List<Object> annotations = new ArrayList<Object>();
+            annotations.add(annotation.newInstance(label, fieldLabel));
+            if (unit != null) {
+                annotations.add(annotation.newInstance(timespan, unit));
+            }
+            return valueDescriptor.newInstance(type, fieldName, annotations);
+        }
+
+        EventKind create(String eventName, String eventLabel, String eventDescription, Object... fields) throws Exception {
+            List<Object> annotations = new ArrayList<Object>();
+            annotations.add(annotation.newInstance(name, eventName));
+            annotations.add(annotation.newInstance(label, eventLabel));
+            annotations.add(annotation.newInstance(description, eventDescription));
+            annotations.add(annotation.newInstance(category, new String[] { "ServiceMix", "Specs" }));
+            List<Object> values = new ArrayList<Object>();
+            Collections.addAll(values, fields);
+            Object factory = create.invoke(null, annotations, values);
+            factory.getClass().getMethod("register").invoke(factory);
+            Object type = factory.getClass().getMethod("getEventType").invoke(factory);
+            return new EventKind(factory,
+                    factory.getClass().getMethod("newEvent"),
+                    type,
+                    type.getClass().getMethod("isEnabled"));
+        }
+    }
+
+}
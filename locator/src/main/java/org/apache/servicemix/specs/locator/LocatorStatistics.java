@@ -0,0 +1,230 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Per factory id statistics of the provider lookups.
+ *
+ * Recording is off unless the <code>org.apache.servicemix.specs.statistics</code>
+ * system property is set or it is switched on through JMX.  When off, the
+ * only cost on the lookup path is a volatile read.  When on, recording only
+ * updates atomic counters of an existing entry and does not allocate.
+ */
+public class LocatorStatistics implements LocatorStatisticsMBean {
+
+    public static final String STATISTICS = "org.apache.servicemix.specs.statistics";
+    public static final String DOMAIN = "org.apache.servicemix.specs";
+
+    static final int BUCKETS = 24;
+
+    private static volatile boolean enabled;
+
+    private static final ConcurrentMap<String, Counters> counters = new ConcurrentHashMap<String, Counters>();
+
+    static {
+        try {
+            String prop = System.getProperty(STATISTICS);
+            enabled = prop != null && !"false".equals(prop);
+        } catch (Throwable t) { }
+    }
+
+    public static boolean isRecording() {
+        return enabled;
+    }
+
+    /**
+     * @return the start time of a lookup to pass to {@link #recordLookup}, or <code>0</code> when not recording
+     */
+    static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    static void recordLookup(String factoryId, long start, boolean hit) {
+        if (!enabled || start == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        Counters c = getCounters(factoryId);
+        (hit ? c.hits : c.misses).incrementAndGet();
+        c.latency.addAndGet(nanos);
+        c.histogram.incrementAndGet(bucket(nanos));
+    }
+
+    static void recordTimeout(String factoryId) {
+        if (enabled) {
+            getCounters(factoryId).timeouts.incrementAndGet();
+        }
+    }
+
+    static void recordRejections(String factoryId, int count) {
+        if (enabled) {
+            getCounters(factoryId).rejections.addAndGet(count);
+        }
+    }
+
+    /**
+     * Record where a spec finder found the provider for the given factory id,
+     * also reported as a JFR event when recording.  Resolutions from the
+     * registry are already recorded by the {@link OsgiLocator} lookups and
+     * should not be reported again.
+     */
+    public static void recordResolution(String factoryId, ResolutionSource source) {
+        recordResolution(factoryId, source, null, 0);
+    }
+
+    /**
+     * Record a resolution timed by the given event, as returned by
+     * {@link LocatorEvents#beginResolution()}.
+     */
+    static void recordResolution(String factoryId, ResolutionSource source, Object event, int candidates) {
+        if (enabled) {
+            getCounters(factoryId).sources.incrementAndGet(source.ordinal());
+        }
+        LocatorEvents.commitResolution(event, factoryId, source, candidates);
+    }
+
+    static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = 0;
+        while (micros > 0 && bucket < BUCKETS - 1) {
+            micros >>>= 1;
+            bucket++;
+        }
+        return bucket;
+    }
+
+    private static Counters getCounters(String factoryId) {
+        Counters c = counters.get(factoryId);
+        if (c == null) {
+            c = new Counters();
+            Counters old = counters.putIfAbsent(factoryId, c);
+            if (old != null) {
+                c = old;
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Register the statistics of this copy of the locator in the platform MBean server.
+     *
+     * @return the name of the registered MBean, or <code>null</code> if it could not be registered
+     */
+    public static ObjectName registerMBean(String bundleName, long bundleId) {
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=Locator,name=" + ObjectName.quote(String.valueOf(bundleName)) + ",id=" + bundleId);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new LocatorStatistics(), name);
+            }
+            return name;
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    public static void unregisterMBean(ObjectName name) {
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (Throwable t) {
+                // ignore
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        LocatorStatistics.enabled = enabled;
+    }
+
+    public String[] getFactoryIds() {
+        return counters.keySet().toArray(new String[0]);
+    }
+
+    public long getHits(String factoryId) {
+        Counters c = counters.get(factoryId);
+        return c != null ? c.hits.get() : 0;
+    }
+
+    public long getMisses(String factoryId) {
+        Counters c = counters.get(factoryId);
+        return c != null ? c.misses.get() : 0;
+    }
+
+    public long getTimeouts(String factoryId) {
+        Counters c = counters.get(factoryId);
+        return c != null ? c.timeouts.get() : 0;
+    }
+
+    public long getRejections(String factoryId) {
+        Counters c = counters.get(factoryId);
+        return c != null ? c.rejections.get() : 0;
+    }
+
+    public long getResolutions(String factoryId, String source) {
+        Counters c = counters.get(factoryId);
+        return c != null ? c.sources.get(ResolutionSource.valueOf(source).ordinal()) : 0;
+    }
+
+    public long getTotalLatencyNanos(String factoryId) {
+        Counters c = counters.get(factoryId);
+        return c != null ? c.latency.get() : 0;
+    }
+
+    public long[] getLatencyHistogram(String factoryId) {
+        long[] histogram = new long[BUCKETS];
+        Counters c = counters.get(factoryId);
+        if (c != null) {
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram[i] = c.histogram.get(i);
+            }
+        }
+        return histogram;
+    }
+
+    public void reset() {
+        counters.clear();
+    }
+
+    public void refreshConfiguration() {
+        OsgiLocator.refreshConfiguration();
+    }
+
+    private static class Counters {
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong timeouts = new AtomicLong();
+        final AtomicLong rejections = new AtomicLong();
+        final AtomicLong latency = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+        final AtomicLongArray sources = new AtomicLongArray(ResolutionSource.values().length);
+    }
+
+}
@@ -0,0 +1,67 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+/**
+ * Management interface exposing the provider lookups done through the locator.
+ */
+public interface LocatorStatisticsMBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    String[] getFactoryIds();
+
+    long getHits(String factoryId);
+
+    long getMisses(String factoryId);
+
+    long getTimeouts(String factoryId);
+
+    long getRejections(String factoryId);
+
+    /**
+     * Number of providers resolved from the given {@link ResolutionSource}.
+     *
+     * <code>OSGI</code> resolutions are counted by the locator itself and so
+     * cover every spec finder.  The class path sources are only counted for
+     * the finders resolving through {@link ProviderResolver}, and
+     * <code>FALLBACK</code> for the ones reporting it, that is the JAXP
+     * parsers, transform and datatype finders and the StAX finders.  The
+     * other finders look up the class path on their own and their class path
+     * resolutions are not counted.
+     */
+    long getResolutions(String factoryId, String source);
+
+    long getTotalLatencyNanos(String factoryId);
+
+    /**
+     * Lookup latencies; bucket <code>i</code> counts the lookups that took
+     * less than <code>2^i</code> microseconds, the last bucket counts all slower ones.
+     */
+    long[] getLatencyHistogram(String factoryId);
+
+    void reset();
+
+    /**
+     * Take a new snapshot of the locator settings and factory overrides from
+     * the system properties.
+     */
+    void refreshConfiguration();
+
+}
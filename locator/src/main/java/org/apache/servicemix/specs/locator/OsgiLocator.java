@@ -16,130 +16,1060 @@
  */
 package org.apache.servicemix.specs.locator;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class OsgiLocator {
 
     public static final long DEFAULT_TIMEOUT = 0l;
     public static final String TIMEOUT = "org.apache.servicemix.specs.timeout";
 
-    private static Map<String, List<Callable<Class>>> factories;
-    
-    private static ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * Prefix of the system properties declaring the {@link InstanceStrategy}
+     * of a factory id, e.g. <code>org.apache.servicemix.specs.instance.javax.xml.datatype.DatatypeFactory=singleton</code>.
+     * Pooled strategies may give the pool size as in <code>pooled:16</code>.
+     */
+    public static final String INSTANCE_STRATEGY = "org.apache.servicemix.specs.instance.";
+    public static final int DEFAULT_POOL_SIZE = 8;
+
+    /**
+     * Immutable snapshot of the registered factories.  Writers build a new
+     * snapshot under <code>lock</code> and publish it through this volatile
+     * field, so readers never need to lock.  The factories of each id are
+     * sorted by descending {@link Ranked ranking}, most recent first.
+     */
+    private static volatile Map<String, List<Callable<Class>>> factories;
+
+    /**
+     * Registry published by the locator of another spec bundle, see
+     * {@link #useSharedRegistry(Map)}.  When set, lookups read it instead of
+     * the factories registered in this copy of the locator.
+     */
+    private static volatile Map<String, List<Callable<Class>>> shared;
+
+    /**
+     * Notified after each change of the registry, outside of the lock.
+     */
+    private static volatile Runnable changeListener;
+
+    /**
+     * Region of the lookups not giving one explicitly when the caller has
+     * none, see {@link Regional}.
+     */
+    private static volatile String region;
+
+    /**
+     * Gives the region of the caller of a lookup, if any.
+     */
+    private static volatile Regional callerRegion;
+
+    /**
+     * Whether an activator is running, see {@link #isActive()}.
+     */
+    private static volatile boolean active;
+
+    private static final char REGION_SEPARATOR = '@';
+
+    private static final Object lock = new Object();
+
+    /**
+     * Incremented each time the registry changes.
+     */
+    private static volatile long generation;
+
+    /**
+     * Best compatible provider per registry key and factory class.  A
+     * resolution is only valid as long as the factory list it was computed
+     * from is still the one in the current snapshot, and the override of the
+     * factory id the one it was computed with, so changes to other ids do not
+     * evict it.  Entries are looked up by registry key first so that repeated
+     * lookups do not allocate any key.
+     */
+    private static final ConcurrentMap<String, ConcurrentMap<Class<?>, Resolution>> resolutions =
+            new ConcurrentHashMap<String, ConcurrentMap<Class<?>, Resolution>>();
+
+    /**
+     * Providers of each registry key and factory class, as returned by
+     * {@link #locateAll(Class, String)}.  Entries are validated the same way
+     * as resolutions, so that repeated lookups do not allocate anything.
+     */
+    private static final ConcurrentMap<String, ConcurrentMap<Class<?>, Providers>> providers =
+            new ConcurrentHashMap<String, ConcurrentMap<Class<?>, Providers>>();
+
+    /**
+     * Whether the registry in use has providers of any region, see
+     * {@link #getCallerRegion(boolean)}.
+     */
+    private static volatile boolean regional;
+
+    /**
+     * Pending lookups, per factory id, waiting for a matching provider to be
+     * registered.  Guarded by <code>lock</code>.
+     */
+    private static final Map<String, List<LocateFuture<?>>> waiters = new HashMap<String, List<LocateFuture<?>>>();
+
+    /**
+     * Lookups by factory id and class loader that found no provider, tagged
+     * with the generation they were made at.  Cleared on each registry change
+     * so that class loaders are not retained for long.
+     */
+    private static final ConcurrentMap<MissKey, Miss> misses = new ConcurrentHashMap<MissKey, Miss>();
+
+    /**
+     * Registry updates announced but not applied yet, with the factory ids
+     * they may change, see {@link #addBarrier(Set)}.
+     */
+    private static final ConcurrentMap<CountDownLatch, Set<String>> barriers = new ConcurrentHashMap<CountDownLatch, Set<String>>();
+
+    /**
+     * Factory ids of the updates that may change any of them.
+     */
+    private static final Set<String> ANY_FACTORY = Collections.unmodifiableSet(new HashSet<String>());
+
+    private static final AtomicInteger pendingBarriers = new AtomicInteger();
+
+    /**
+     * Number of barriers added so far, so that lookups racing with one do not
+     * cache a miss it may turn into a hit.
+     */
+    private static final AtomicLong announced = new AtomicLong();
+
+    /**
+     * Set on the threads applying the pending updates, whose own lookups must
+     * not wait for the barriers they are about to release.
+     */
+    private static final ThreadLocal<Boolean> updating = new ThreadLocal<Boolean>();
+
+    /**
+     * Maximum time in milliseconds a lookup waits for pending registry updates.
+     */
+    static final long BARRIER_TIMEOUT = 5000;
+
+    private static final ConcurrentMap<String, List<ProviderListener>> providerListeners = new ConcurrentHashMap<String, List<ProviderListener>>();
+
+    /**
+     * Factory ids whose listeners are still to be notified, guarding
+     * <code>notifying</code> too.
+     */
+    private static final Set<String> pendingNotifications = new HashSet<String>();
+
+    private static boolean notifying;
+
+    /**
+     * Strategies set with {@link #setInstanceStrategy(String, InstanceStrategy)},
+     * which take precedence over the configured ones.
+     */
+    private static final ConcurrentMap<String, InstanceStrategy> instanceStrategies = new ConcurrentHashMap<String, InstanceStrategy>();
+
+    private static final ConcurrentMap<String, Integer> poolSizes = new ConcurrentHashMap<String, Integer>();
+
+    private static final ConcurrentMap<String, ConcurrentMap<Class<?>, InstanceHolder>> instances =
+            new ConcurrentHashMap<String, ConcurrentMap<Class<?>, InstanceHolder>>();
 
     private OsgiLocator() {
     }
 
     public static void unregister(String id, Callable<Class> factory) {
-        lock.writeLock().lock();
-        try {
-            if (factories != null) {
-                List<Callable<Class>> l = factories.get(id);
+        unregisterAll(Collections.singletonMap(id, Collections.singletonList(factory)));
+    }
+
+    public static void register(String id, Callable<Class> factory) {
+        registerAll(Collections.singletonMap(id, Collections.singletonList(factory)));
+    }
+
+    /**
+     * Register several factories, possibly for several ids, as a single
+     * update of the registry: lookups see either none or all of them, and
+     * threads waiting for any of these ids are woken up once.
+     */
+    public static void registerAll(Map<String, ? extends List<? extends Callable<Class>>> factoriesById) {
+        if (factoriesById.isEmpty()) {
+            return;
+        }
+        List<LocateFuture<?>> pending = new ArrayList<LocateFuture<?>>();
+        Set<String> keys;
+        synchronized (lock) {
+            Map<String, List<Callable<Class>>> current = factories;
+            Map<String, List<Callable<Class>>> map;
+            if (current == null) {
+                map = new HashMap<String, List<Callable<Class>>>();
+            } else {
+                map = new HashMap<String, List<Callable<Class>>>(current);
+            }
+            Map<String, List<Callable<Class>>> partitions = partition(factoriesById);
+            if (partitions.isEmpty()) {
+                return;
+            }
+            for (Map.Entry<String, List<Callable<Class>>> entry : partitions.entrySet()) {
+                List<Callable<Class>> l = map.get(entry.getKey());
+                List<Callable<Class>> nl = new ArrayList<Callable<Class>>((l != null ? l.size() : 0) + entry.getValue().size());
+                if (l != null) {
+                    nl.addAll(l);
+                }
+                for (Callable<Class> factory : entry.getValue()) {
+                    nl.add(insertionPoint(nl, getRanking(factory)), factory);
+                }
+                map.put(entry.getKey(), Collections.unmodifiableList(nl));
+            }
+            factories = map;
+            updateRegional();
+            keys = partitions.keySet();
+            invalidate(keys);
+            // waiters of all regions are woken up, they check their own
+            for (String id : factoriesById.keySet()) {
+                List<LocateFuture<?>> l = waiters.remove(id);
                 if (l != null) {
-                    l.remove(factory);
+                    pending.addAll(l);
                 }
             }
-        } finally {
-            lock.writeLock().unlock();
         }
+        for (LocateFuture<?> future : pending) {
+            await(future);
+        }
+        fireChanged(keys);
     }
 
-    public static void register(String id, Callable<Class> factory) {
-        lock.writeLock().lock();
-        try {
-            if (factories == null) {
-                factories = new HashMap<String, List<Callable<Class>>>();
+    /**
+     * Unregister several factories as a single update of the registry.
+     */
+    public static void unregisterAll(Map<String, ? extends List<? extends Callable<Class>>> factoriesById) {
+        Set<String> ids = new HashSet<String>();
+        synchronized (lock) {
+            Map<String, List<Callable<Class>>> current = factories;
+            if (current == null) {
+                return;
             }
-            List<Callable<Class>> l = factories.get(id);
-            if (l ==  null) {
-                l = new ArrayList<Callable<Class>>();
-                factories.put(id, l);
+            Map<String, List<Callable<Class>>> map = null;
+            for (Map.Entry<String, List<Callable<Class>>> entry : partition(factoriesById).entrySet()) {
+                String key = entry.getKey();
+                List<Callable<Class>> l = (map != null ? map : current).get(key);
+                if (l == null) {
+                    continue;
+                }
+                List<Callable<Class>> nl = new ArrayList<Callable<Class>>(l);
+                if (!nl.removeAll(entry.getValue())) {
+                    continue;
+                }
+                if (map == null) {
+                    map = new HashMap<String, List<Callable<Class>>>(current);
+                }
+                if (nl.isEmpty()) {
+                    map.remove(key);
+                } else {
+                    map.put(key, Collections.unmodifiableList(nl));
+                }
+                ids.add(key);
             }
-            l.add(0, factory);
-            synchronized (lock) {
-                lock.notifyAll();
+            if (map != null) {
+                factories = map;
+                updateRegional();
+                invalidate(ids);
+                // evict cached instances, they may belong to the bundle going away
+                clearInstances(null);
+            } else {
+                return;
             }
-        } finally {
-            lock.writeLock().unlock();
+        }
+        fireChanged(ids);
+    }
+
+    /**
+     * Group the given factories by registry key, i.e. by factory id and
+     * {@link Regional region}.
+     */
+    private static Map<String, List<Callable<Class>>> partition(Map<String, ? extends List<? extends Callable<Class>>> factoriesById) {
+        Map<String, List<Callable<Class>>> partitions = new HashMap<String, List<Callable<Class>>>();
+        for (Map.Entry<String, ? extends List<? extends Callable<Class>>> entry : factoriesById.entrySet()) {
+            for (Callable<Class> factory : entry.getValue()) {
+                String key = getKey(entry.getKey(), getRegion(factory));
+                List<Callable<Class>> l = partitions.get(key);
+                if (l == null) {
+                    l = new ArrayList<Callable<Class>>();
+                    partitions.put(key, l);
+                }
+                l.add(factory);
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Key of the factories of the given id and region in the registry.
+     */
+    private static String getKey(String factoryId, String region) {
+        return region != null ? factoryId + REGION_SEPARATOR + region : factoryId;
+    }
+
+    private static String getRegion(Callable<Class> factory) {
+        return factory instanceof Regional ? ((Regional) factory).getRegion() : null;
+    }
+
+    /**
+     * Check whether the locator is backed by a running activator.  Outside of
+     * OSGi this is always <code>false</code>, so the spec finders test it
+     * before anything else and go straight to their classpath discovery.
+     */
+    public static boolean isActive() {
+        return active;
+    }
+
+    static void setActive(boolean active) {
+        OsgiLocator.active = active;
+    }
+
+    /**
+     * Set the region in which lookups not giving one explicitly are made,
+     * <code>null</code> for none.
+     */
+    static void setRegion(String region) {
+        synchronized (lock) {
+            OsgiLocator.region = region;
+            invalidate(Collections.<String>emptySet());
+        }
+    }
+
+    /**
+     * Check whether the registry in use has providers of any region, their
+     * registry keys then holding it.
+     */
+    private static void updateRegional() {
+        Map<String, List<Callable<Class>>> current = getRegistry();
+        boolean found = false;
+        if (current != null) {
+            for (String key : current.keySet()) {
+                if (key.indexOf(REGION_SEPARATOR) >= 0) {
+                    found = true;
+                    break;
+                }
+            }
+        }
+        regional = found;
+    }
+
+    /**
+     * Set what gives the region of the caller of a lookup not giving one
+     * explicitly, usually from the bundle the thread context class loader
+     * belongs to, <code>null</code> for none.
+     */
+    static void setCallerRegion(Regional callerRegion) {
+        OsgiLocator.callerRegion = callerRegion;
+    }
+
+    /**
+     * Region of a lookup not giving one explicitly: the one of the caller,
+     * or else the default one.  Unless the lookup may wait for providers to
+     * be registered, the region is not looked for as long as no provider has
+     * one, so that it costs nothing to the deployments not using regions.
+     */
+    private static String getCallerRegion(boolean waiting) {
+        if (!regional && !waiting) {
+            return null;
+        }
+        Regional caller = callerRegion;
+        String r = caller != null ? caller.getRegion() : null;
+        return r != null ? r : region;
+    }
+
+    /**
+     * Take a new snapshot of the locator settings, see
+     * {@link LocatorConfiguration}.  Lookups made before the refresh do not
+     * see the changes made to the system properties since the previous one.
+     */
+    public static void refreshConfiguration() {
+        synchronized (lock) {
+            LocatorConfiguration.refresh();
+            configurationChanged();
+        }
+    }
+
+    /**
+     * Apply the settings of the {@link LocatorConfiguration#PID} configuration,
+     * <code>null</code> once it has been deleted.
+     */
+    static void updateConfiguration(Dictionary<?, ?> configuration) {
+        synchronized (lock) {
+            LocatorConfiguration.update(configuration);
+            configurationChanged();
         }
     }
 
+    /**
+     * Forget what was derived from the previous configuration: the misses and
+     * the instances cached according to the configured strategies, which the
+     * new snapshot reads again.
+     */
+    private static void configurationChanged() {
+        invalidate(Collections.<String>emptySet());
+        for (String factoryId : instances.keySet()) {
+            if (!instanceStrategies.containsKey(factoryId)) {
+                clearInstances(factoryId);
+            }
+        }
+    }
+
+    /**
+     * Notify the listeners after the factories of the given registry keys
+     * changed.
+     */
+    private static void fireChanged(Set<String> keys) {
+        Runnable listener = changeListener;
+        if (listener != null) {
+            listener.run();
+        }
+        if (providerListeners.isEmpty()) {
+            return;
+        }
+        Set<String> ids = new HashSet<String>();
+        for (String key : keys) {
+            int idx = key.indexOf(REGION_SEPARATOR);
+            ids.add(idx >= 0 ? key.substring(0, idx) : key);
+        }
+        notifyProviderListeners(ids);
+    }
+
+    /**
+     * Register a listener notified each time the providers of the given
+     * factory id change.
+     */
+    public static void addProviderListener(String factoryId, ProviderListener listener) {
+        List<ProviderListener> l = providerListeners.get(factoryId);
+        if (l == null) {
+            l = new CopyOnWriteArrayList<ProviderListener>();
+            List<ProviderListener> old = providerListeners.putIfAbsent(factoryId, l);
+            if (old != null) {
+                l = old;
+            }
+        }
+        l.add(listener);
+    }
+
+    public static void removeProviderListener(String factoryId, ProviderListener listener) {
+        List<ProviderListener> l = providerListeners.get(factoryId);
+        if (l != null) {
+            l.remove(listener);
+        }
+    }
+
+    /**
+     * Deliver the notifications of the given factory ids.  Updates happening
+     * while notifications are being delivered are queued and handed over to
+     * the delivering thread, so that the listeners of an id changing several
+     * times meanwhile are only notified once.
+     */
+    private static void notifyProviderListeners(Set<String> ids) {
+        synchronized (pendingNotifications) {
+            for (String id : ids) {
+                if (providerListeners.containsKey(id)) {
+                    pendingNotifications.add(id);
+                }
+            }
+            if (notifying || pendingNotifications.isEmpty()) {
+                return;
+            }
+            notifying = true;
+        }
+        for (;;) {
+            List<String> batch;
+            synchronized (pendingNotifications) {
+                if (pendingNotifications.isEmpty()) {
+                    notifying = false;
+                    return;
+                }
+                batch = new ArrayList<String>(pendingNotifications);
+                pendingNotifications.clear();
+            }
+            for (String id : batch) {
+                List<ProviderListener> l = providerListeners.get(id);
+                if (l == null) {
+                    continue;
+                }
+                for (ProviderListener listener : l) {
+                    try {
+                        listener.providersChanged(id);
+                    } catch (Throwable t) {
+                        // do not let a listener break the registry update
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Read-only view of the factories registered in this copy of the locator,
+     * always reflecting the current snapshot.  It only exposes JDK types so
+     * that it can be handed to the locators embedded in other bundles.
+     */
+    static Map<String, List<Callable<Class>>> getRegistryView() {
+        return RegistryView.INSTANCE;
+    }
+
+    static void setChangeListener(Runnable listener) {
+        changeListener = listener;
+    }
+
+    /**
+     * Look providers up in the given registry, as returned by
+     * {@link #getRegistryView()} in another copy of the locator, instead of
+     * the factories registered in this one.  Pass <code>null</code> to go
+     * back to the local factories.
+     */
+    static void useSharedRegistry(Map<String, List<Callable<Class>>> registry) {
+        shared = registry;
+        sharedRegistryChanged();
+    }
+
+    /**
+     * Forget what was resolved from the shared registry after it changed, and
+     * let the pending lookups check it again.
+     */
+    static void sharedRegistryChanged() {
+        List<LocateFuture<?>> pending = new ArrayList<LocateFuture<?>>();
+        synchronized (lock) {
+            updateRegional();
+            invalidate(Collections.<String>emptySet());
+            clearInstances(null);
+            for (List<LocateFuture<?>> l : waiters.values()) {
+                pending.addAll(l);
+            }
+            waiters.clear();
+        }
+        for (LocateFuture<?> future : pending) {
+            await(future);
+        }
+        // the changed ids are not known
+        notifyProviderListeners(providerListeners.keySet());
+    }
+
+    private static Map<String, List<Callable<Class>>> getRegistry() {
+        Map<String, List<Callable<Class>>> registry = shared;
+        return registry != null ? registry : factories;
+    }
+
+    /**
+     * Announce a registry update that may change any factory id, see
+     * {@link #addBarrier(Set)}.
+     */
+    static CountDownLatch addBarrier() {
+        return addBarrier(null);
+    }
+
+    /**
+     * Announce a registry update that will be applied asynchronously and may
+     * change the providers of the given factory ids, or of any of them if
+     * <code>null</code>.  Until the returned latch is counted down, lookups
+     * for these factory ids not finding any provider wait for it so that they
+     * see the registry as if the update had been applied synchronously.  The
+     * misses cached for them are dropped, so that lookups answered from the
+     * cache never wait.
+     */
+    static CountDownLatch addBarrier(Set<String> factoryIds) {
+        CountDownLatch barrier = new CountDownLatch(1);
+        barriers.put(barrier, factoryIds != null ? factoryIds : ANY_FACTORY);
+        pendingBarriers.incrementAndGet();
+        announced.incrementAndGet();
+        if (factoryIds == null) {
+            misses.clear();
+        } else if (!factoryIds.isEmpty()) {
+            for (Iterator<MissKey> it = misses.keySet().iterator(); it.hasNext();) {
+                if (factoryIds.contains(it.next().factoryId)) {
+                    it.remove();
+                }
+            }
+        }
+        return barrier;
+    }
+
+    static void releaseBarrier(CountDownLatch barrier) {
+        if (barriers.remove(barrier) != null) {
+            pendingBarriers.decrementAndGet();
+        }
+        barrier.countDown();
+    }
+
+    /**
+     * Mark the calling thread as the one applying the pending updates, or not
+     * anymore.  Lookups it makes meanwhile, from provider listeners or from
+     * the static initialisers of providers for instance, do not wait for the
+     * barriers.
+     */
+    static void setUpdating(boolean value) {
+        if (value) {
+            updating.set(Boolean.TRUE);
+        } else {
+            updating.remove();
+        }
+    }
+
+    /**
+     * Wait, for at most {@link #BARRIER_TIMEOUT} milliseconds, for the
+     * pending registry updates that may change the given factory id to be
+     * applied.  The registry shared by another copy of the locator waits for
+     * its own updates when it is asked for a factory id, see
+     * {@link RegistryView#get(Object)}.
+     *
+     * @return whether there were pending updates to wait for
+     */
+    private static boolean awaitBarriers(String factoryId) {
+        if (pendingBarriers.get() == 0 || updating.get() != null) {
+            return false;
+        }
+        long deadline = System.currentTimeMillis() + BARRIER_TIMEOUT;
+        boolean pending = false;
+        try {
+            for (Map.Entry<CountDownLatch, Set<String>> entry : barriers.entrySet()) {
+                Set<String> ids = entry.getValue();
+                if (ids != ANY_FACTORY && !ids.contains(factoryId)) {
+                    continue;
+                }
+                pending = true;
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || !entry.getKey().await(remaining, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return pending;
+    }
+
+    /**
+     * Current generation of the registry, changing each time a factory is
+     * registered or unregistered.
+     */
+    static long getGeneration() {
+        return generation;
+    }
+
+    private static void invalidate(Set<String> ids) {
+        generation++;
+        misses.clear();
+        resolutions.keySet().removeAll(ids);
+        providers.keySet().removeAll(ids);
+    }
+
+    private static int getRanking(Callable<Class> factory) {
+        return factory instanceof Ranked ? ((Ranked) factory).getRanking() : 0;
+    }
+
+    /**
+     * Index of the first factory with a ranking lower or equal to the given
+     * one, so that a new factory goes before the ones of the same ranking.
+     */
+    private static int insertionPoint(List<Callable<Class>> l, int ranking) {
+        int low = 0;
+        int high = l.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getRanking(l.get(mid)) > ranking) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
 
     public static <T> Class<? extends T> locate(Class<T> factoryId) {
         return locate(factoryId, factoryId.getName());
     }
 
     private static long getTimeout() {
-        long timeout = DEFAULT_TIMEOUT;
-        try {
-            String prop = System.getProperty(TIMEOUT);
-            if (prop != null) {
-                timeout = Long.parseLong(prop);
-            }
-        } catch (Throwable t) { }
-        return timeout;
+        return LocatorConfiguration.get().getTimeout();
     }
 
     public static <T> Class<? extends T> locate(Class<T> factoryClass, String factoryId) {
-        long timeout = getTimeout();
-        if (timeout <= 0) {
-            return doLocate(factoryClass, factoryId);
-        }
-        long t0 = System.currentTimeMillis();
-        long t1 = t0;
-        while (t1 - t0 < timeout) {
-            Class<? extends T> impl = doLocate(factoryClass, factoryId);
+        return locate(factoryClass, factoryId, getTimeout());
+    }
+
+    /**
+     * Locate a provider, waiting up to <code>timeout</code> milliseconds for
+     * one to be registered if none is available yet.  Only registrations for
+     * the given factory id wake up the calling thread.
+     */
+    public static <T> Class<? extends T> locate(Class<T> factoryClass, String factoryId, long timeout) {
+        return locate(factoryClass, factoryId, getCallerRegion(timeout > 0), timeout);
+    }
+
+    /**
+     * Locate a provider of the given {@link Regional region}, falling back to
+     * the providers without any region.
+     */
+    public static <T> Class<? extends T> locate(Class<T> factoryClass, String factoryId, String region) {
+        return locate(factoryClass, factoryId, region, getTimeout());
+    }
+
+    public static <T> Class<? extends T> locate(Class<T> factoryClass, String factoryId, String region, long timeout) {
+        Object event = LocatorEvents.beginLookup();
+        Object resolution = LocatorEvents.beginResolution();
+        long start = LocatorStatistics.start();
+        long waited = 0;
+        Class<? extends T> impl = doLocate(factoryClass, factoryId, region);
+        if (impl == null && awaitBarriers(factoryId)) {
+            // the pending updates may bring a provider
+            impl = doLocate(factoryClass, factoryId, region);
+        }
+        if (impl == null && timeout > 0) {
+            long t0 = System.currentTimeMillis();
+            impl = waitFor(factoryClass, factoryId, region, timeout);
+            waited = System.currentTimeMillis() - t0;
+            if (impl == null) {
+                LocatorStatistics.recordTimeout(factoryId);
+            }
+        }
+        endLookup(factoryId, region, impl, start, waited, event, resolution);
+        return impl;
+    }
+
+    /**
+     * Report a lookup and, if it found a provider, the resolution from the
+     * registry, so that these are reported for every spec finder.
+     */
+    private static void endLookup(String factoryId, String region, Class<?> impl, long start, long waited,
+                                  Object event, Object resolution) {
+        LocatorStatistics.recordLookup(factoryId, start, impl != null);
+        if (event != null || impl != null) {
+            int candidates = event != null || resolution != null ? getCandidates(factoryId, region) : 0;
+            if (event != null) {
+                String source = impl == null ? "NONE"
+                        : LocatorConfiguration.get().getOverride(factoryId) != null ? "OVERRIDE" : "REGISTRY";
+                LocatorEvents.commitLookup(event, factoryId, candidates, source, waited);
+            }
             if (impl != null) {
-                return impl;
+                LocatorStatistics.recordResolution(factoryId, ResolutionSource.OSGI, resolution, candidates);
             }
-            synchronized (lock) {
-                try {
-                    lock.wait(timeout - (t1 - t0));
-                } catch (InterruptedException e) {
-                    return null;
+        }
+    }
+
+    /**
+     * Locate a provider for the given factory id, the factory class being
+     * loaded from the given class loader, or <code>null</code> for the
+     * bootstrap class loader.
+     *
+     * Lookups finding nothing, including the ones for which the factory class
+     * itself can not be loaded, are remembered per factory id and class loader
+     * until the registry changes, so that finders mostly falling back to the
+     * class path do not pay for the OSGi lookup every time.
+     */
+    public static Class<?> locate(String factoryId, ClassLoader loader) {
+        return locate(factoryId, loader, getTimeout());
+    }
+
+    public static Class<?> locate(String factoryId, ClassLoader loader, long timeout) {
+        long gen = generation;
+        long barrier = announced.get();
+        String region = getCallerRegion(timeout > 0);
+        MissKey key = new MissKey(factoryId, loader, region, LocatorConfiguration.get().getOverride(factoryId));
+        Miss miss = misses.get(key);
+        if (miss != null && miss.generation == gen) {
+            Object event = LocatorEvents.beginLookup();
+            Object resolution = LocatorEvents.beginResolution();
+            long start = LocatorStatistics.start();
+            long waited = 0;
+            Class<?> impl = null;
+            if (miss.factoryClass != null && timeout > 0) {
+                long t0 = System.currentTimeMillis();
+                impl = waitFor(miss.factoryClass, factoryId, region, timeout);
+                waited = System.currentTimeMillis() - t0;
+                if (impl == null) {
+                    LocatorStatistics.recordTimeout(factoryId);
                 }
             }
-            t1 = System.currentTimeMillis();
+            endLookup(factoryId, region, impl, start, waited, event, resolution);
+            return impl;
         }
-        return null;
+        Class<?> factoryClass = null;
+        try {
+            factoryClass = loader != null ? loader.loadClass(factoryId) : Class.forName(factoryId);
+        } catch (Throwable t) {
+            // no such factory in this class loader
+        }
+        Class<?> impl = factoryClass != null ? locate(factoryClass, factoryId, region, timeout) : null;
+        if (impl == null && barrier == announced.get()) {
+            misses.put(key, new Miss(gen, factoryClass));
+        }
+        return impl;
+    }
+
+    private static int getCandidates(String factoryId, String region) {
+        return getCandidates(getRegistry(), factoryId, region).size();
     }
 
-    private static <T> Class<? extends T> doLocate(Class<T> factoryClass, String factoryId) {
-        lock.readLock().lock();
+    /**
+     * Factories of the given region, followed by the ones without region.
+     */
+    private static List<Callable<Class>> getCandidates(Map<String, List<Callable<Class>>> current,
+                                                       String factoryId, String region) {
+        List<Callable<Class>> l = current != null ? current.get(factoryId) : null;
+        List<Callable<Class>> r = current != null && region != null ? current.get(getKey(factoryId, region)) : null;
+        if (r == null) {
+            return l != null ? l : Collections.<Callable<Class>>emptyList();
+        }
+        if (l == null) {
+            return r;
+        }
+        List<Callable<Class>> candidates = new ArrayList<Callable<Class>>(r.size() + l.size());
+        candidates.addAll(r);
+        candidates.addAll(l);
+        return candidates;
+    }
+
+    private static <T> Class<? extends T> waitFor(Class<T> factoryClass, String factoryId, String region, long timeout) {
+        LocateFuture<T> future = new LocateFuture<T>(factoryClass, factoryId, region);
+        await(future);
         try {
-            if (factories != null) {
-                List<Callable<Class>> l = factories.get(factoryId);
-                if (l != null && !l.isEmpty()) {
-                    // look up the System property first
-                    String factoryClassName = System.getProperty(factoryId);
-                    try {
-                        for (Callable<Class> i : l) {
-                            Class c = null;
-                            try {
-                                c = i.call();
-                            } catch (Exception ex) {
-                                // do nothing here
-                            }
-                            if (c != null && factoryClass == c.getClassLoader().loadClass(factoryClass.getName())
-                                     && (factoryClassName == null || c.getName().equals(factoryClassName)))
-                            {
-                                return c;
-                            }
-                        }
-                    } catch (Exception ex) {
-                        // do nothing here
-                    }  
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            future.cancel(false);
+        }
+    }
+
+    public static <T> Future<Class<? extends T>> locateAsync(Class<T> factoryId) {
+        return locateAsync(factoryId, factoryId.getName());
+    }
+
+    /**
+     * Asynchronously locate a provider.  The returned future completes as soon
+     * as a matching provider is registered, or immediately if one is already
+     * available.  Cancel it to stop waiting.
+     */
+    public static <T> Future<Class<? extends T>> locateAsync(Class<T> factoryClass, String factoryId) {
+        LocateFuture<T> future = new LocateFuture<T>(factoryClass, factoryId, getCallerRegion(true));
+        await(future);
+        return future;
+    }
+
+    public static <T> T locateInstance(Class<T> factoryId) throws Exception {
+        return locateInstance(factoryId, factoryId.getName());
+    }
+
+    /**
+     * Locate a provider and return an instance of it, created or reused
+     * according to the {@link InstanceStrategy} declared for the factory id.
+     * Instances obtained from a {@link InstanceStrategy#POOLED} factory should
+     * be handed back with {@link #releaseInstance(Class, String, Object)}.
+     *
+     * @return the provider instance, or <code>null</code> if no provider is registered
+     */
+    public static <T> T locateInstance(Class<T> factoryClass, String factoryId) throws Exception {
+        Class<? extends T> c = locate(factoryClass, factoryId);
+        if (c == null) {
+            return null;
+        }
+        InstanceStrategy strategy = getInstanceStrategy(factoryId);
+        if (strategy == InstanceStrategy.NEW) {
+            return factoryClass.cast(Instantiator.newInstance(c));
+        }
+        ConcurrentMap<Class<?>, InstanceHolder> holders = instances.get(factoryId);
+        InstanceHolder holder = holders != null ? holders.get(factoryClass) : null;
+        if (holder == null) {
+            holder = InstanceHolder.create(strategy, getPoolSize(factoryId));
+            InstanceHolder old = byClass(instances, factoryId).putIfAbsent(factoryClass, holder);
+            if (old != null) {
+                holder = old;
+            }
+        }
+        return factoryClass.cast(holder.acquire(c));
+    }
+
+    /**
+     * Hand back an instance obtained from {@link #locateInstance(Class, String)}.
+     * This is a no-op unless the factory id uses {@link InstanceStrategy#POOLED}.
+     */
+    public static void releaseInstance(Class<?> factoryClass, String factoryId, Object instance) {
+        ConcurrentMap<Class<?>, InstanceHolder> holders = instances.get(factoryId);
+        InstanceHolder holder = holders != null ? holders.get(factoryClass) : null;
+        if (holder != null && instance != null) {
+            holder.release(instance);
+        }
+    }
+
+    public static void setInstanceStrategy(String factoryId, InstanceStrategy strategy) {
+        setInstanceStrategy(factoryId, strategy, DEFAULT_POOL_SIZE);
+    }
+
+    public static void setInstanceStrategy(String factoryId, InstanceStrategy strategy, int poolSize) {
+        instanceStrategies.put(factoryId, strategy);
+        poolSizes.put(factoryId, Integer.valueOf(poolSize));
+        clearInstances(factoryId);
+    }
+
+    private static InstanceStrategy getInstanceStrategy(String factoryId) {
+        InstanceStrategy strategy = instanceStrategies.get(factoryId);
+        return strategy != null ? strategy : LocatorConfiguration.get().getInstanceStrategy(factoryId);
+    }
+
+    private static int getPoolSize(String factoryId) {
+        Integer poolSize = poolSizes.get(factoryId);
+        return poolSize != null ? poolSize.intValue() : LocatorConfiguration.get().getPoolSize(factoryId);
+    }
+
+    /**
+     * Evict and clear the instances cached for the given factory id, or for
+     * all of them if <code>null</code>.
+     */
+    private static void clearInstances(String factoryId) {
+        for (Iterator<Map.Entry<String, ConcurrentMap<Class<?>, InstanceHolder>>> it = instances.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, ConcurrentMap<Class<?>, InstanceHolder>> entry = it.next();
+            if (factoryId == null || entry.getKey().equals(factoryId)) {
+                it.remove();
+                for (InstanceHolder holder : entry.getValue().values()) {
+                    holder.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Entries of the given cache for the given key, created on first use.
+     */
+    private static <V> ConcurrentMap<Class<?>, V> byClass(ConcurrentMap<String, ConcurrentMap<Class<?>, V>> cache, String key) {
+        ConcurrentMap<Class<?>, V> entries = cache.get(key);
+        if (entries == null) {
+            entries = new ConcurrentHashMap<Class<?>, V>();
+            ConcurrentMap<Class<?>, V> old = cache.putIfAbsent(key, entries);
+            if (old != null) {
+                entries = old;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Try to complete the future, or park it in the waiters of its factory id.
+     * The registry generation is checked before parking so that a registration
+     * happening concurrently is never missed.
+     */
+    private static void await(LocateFuture<?> future) {
+        for (;;) {
+            long gen = generation;
+            if (future.isDone() || future.tryComplete()) {
+                return;
+            }
+            synchronized (lock) {
+                if (gen == generation) {
+                    List<LocateFuture<?>> l = waiters.get(future.factoryId);
+                    if (l == null) {
+                        l = new ArrayList<LocateFuture<?>>();
+                        waiters.put(future.factoryId, l);
+                    }
+                    l.add(future);
+                    return;
                 }
             }
+        }
+    }
+
+    private static void removeWaiter(LocateFuture<?> future) {
+        synchronized (lock) {
+            List<LocateFuture<?>> l = waiters.get(future.factoryId);
+            if (l != null && l.remove(future) && l.isEmpty()) {
+                waiters.remove(future.factoryId);
+            }
+        }
+    }
+
+    private static <T> Class<? extends T> doLocate(Class<T> factoryClass, String factoryId, String region) {
+        Map<String, List<Callable<Class>>> current = getRegistry();
+        if (current == null) {
             return null;
-        } finally {
-            lock.readLock().unlock();
+        }
+        if (region != null) {
+            Class<? extends T> c = doLocate(current, getKey(factoryId, region), factoryClass, factoryId);
+            if (c != null) {
+                return c;
+            }
+        }
+        return doLocate(current, factoryId, factoryClass, factoryId);
+    }
+
+    private static <T> Class<? extends T> doLocate(Map<String, List<Callable<Class>>> current, String registryKey,
+                                                   Class<T> factoryClass, String factoryId) {
+        List<Callable<Class>> l = current.get(registryKey);
+        if (l == null) {
+            return null;
+        }
+        // look up the overriding system property first
+        String factoryClassName = LocatorConfiguration.get().getOverride(factoryId);
+        ConcurrentMap<Class<?>, Resolution> entries = resolutions.get(registryKey);
+        Resolution resolution = entries != null ? entries.get(factoryClass) : null;
+        if (resolution != null && resolution.isValid(l, factoryClassName)) {
+            return (Class<? extends T>) resolution.clazz;
+        }
+        Class<? extends T> c = doLocate(l, factoryClass, factoryId, factoryClassName);
+        if (c != null) {
+            byClass(resolutions, registryKey).put(factoryClass, new Resolution(l, factoryClassName, c));
+        }
+        return c;
+    }
+
+    private static <T> Class<? extends T> doLocate(List<Callable<Class>> l, Class<T> factoryClass,
+                                                   String factoryId, String factoryClassName) {
+        Class<? extends T> result = null;
+        int rejected = 0;
+        if (l != null && !l.isEmpty()) {
+            for (Callable<Class> i : l) {
+                Boolean compatible = i instanceof ClassSpace ? ((ClassSpace) i).isCompatible(factoryClass) : null;
+                if (compatible != null && !compatible.booleanValue()) {
+                    rejected++;
+                    continue;
+                }
+                Class c = null;
+                try {
+                    c = i.call();
+                } catch (Exception ex) {
+                    // do nothing here
+                }
+                if (c != null && (compatible != null || isCompatible(c, factoryClass))
+                         && (factoryClassName == null || c.getName().equals(factoryClassName)))
+                {
+                    result = c;
+                    break;
+                }
+                rejected++;
+            }
+        }
+        if (rejected > 0) {
+            LocatorStatistics.recordRejections(factoryId, rejected);
+        }
+        return result;
+    }
+
+    /**
+     * Check that the given provider class sees the same factory class as the
+     * caller, for providers not implementing {@link ClassSpace}.
+     */
+    private static boolean isCompatible(Class<?> c, Class<?> factoryClass) {
+        try {
+            ClassLoader loader = c.getClassLoader();
+            Class<?> seen = loader != null ? loader.loadClass(factoryClass.getName()) : Class.forName(factoryClass.getName());
+            return seen == factoryClass;
+        } catch (Throwable t) {
+            return false;
         }
     }
 
@@ -147,27 +1077,244 @@ public class OsgiLocator {
         return locateAll(factoryId, factoryId.getName());
     }
 
+    /**
+     * Locate all the providers of the given factory id compatible with the
+     * factory class.  The returned list is immutable and shared by the callers
+     * until the providers of the factory id change.
+     */
     public static <T> List<Class<? extends T>> locateAll(Class<T> factoryClass, String factoryId) {
-        lock.readLock().lock();
-        try {
-            List<Class<? extends T>> classes = new ArrayList<Class<? extends T>>();
-            if (factories != null) {
-                List<Callable<Class>> l = factories.get(factoryId);
-                if (l != null) {
-                    for (Callable<Class> i : l) {
-                    	try {
-                            Class c = i.call();
-                            if (c != null && factoryClass.isAssignableFrom(c)) {
-                        	    classes.add(c);
-                            }
-                    	} catch (Exception e) {
-                    	}
-    				}
-                }
-            }
-            return classes;
-        } finally {
-            lock.readLock().unlock();
+        Object event = LocatorEvents.beginLookup();
+        long start = LocatorStatistics.start();
+        Providers all = doLocateAll(factoryClass, factoryId);
+        if (all.classes.isEmpty() && awaitBarriers(factoryId)) {
+            // the pending updates may bring providers
+            all = doLocateAll(factoryClass, factoryId);
+        }
+        List<Class<? extends T>> classes = (List) all.classes;
+        int candidates = (all.regional != null ? all.regional.size() : 0) + (all.global != null ? all.global.size() : 0);
+        LocatorStatistics.recordLookup(factoryId, start, !classes.isEmpty());
+        if (event != null) {
+            LocatorEvents.commitLookup(event, factoryId, candidates, classes.isEmpty() ? "NONE" : "REGISTRY", 0);
+        }
+        return classes;
+    }
+
+    private static Providers doLocateAll(Class<?> factoryClass, String factoryId) {
+        Map<String, List<Callable<Class>>> current = getRegistry();
+        String r = getCallerRegion(false);
+        List<Callable<Class>> global = current != null ? current.get(factoryId) : null;
+        List<Callable<Class>> regional = current != null && r != null ? current.get(getKey(factoryId, r)) : null;
+        String key = getKey(factoryId, r);
+        ConcurrentMap<Class<?>, Providers> entries = providers.get(key);
+        Providers all = entries != null ? entries.get(factoryClass) : null;
+        if (all == null || all.regional != regional || all.global != global) {
+            all = new Providers(regional, global, loadAll(factoryClass, getCandidates(current, factoryId, r)));
+            byClass(providers, key).put(factoryClass, all);
+        }
+        return all;
+    }
+
+    private static List<Class<?>> loadAll(Class<?> factoryClass, List<Callable<Class>> l) {
+        List<Class<?>> classes = new ArrayList<Class<?>>(l.size());
+        for (Callable<Class> i : l) {
+            try {
+                Class c = i.call();
+                if (c != null && factoryClass.isAssignableFrom(c)) {
+                    classes.add(c);
+                }
+            } catch (Exception e) {
+            }
+        }
+        return classes.isEmpty() ? Collections.<Class<?>>emptyList() : Collections.unmodifiableList(classes);
+    }
+
+    private static class MissKey {
+        private final String factoryId;
+        private final ClassLoader loader;
+        private final String region;
+        private final String factoryClassName;
+        private final int hash;
+
+        MissKey(String factoryId, ClassLoader loader, String region, String factoryClassName) {
+            this.factoryId = factoryId;
+            this.loader = loader;
+            this.region = region;
+            this.factoryClassName = factoryClassName;
+            int h = factoryId.hashCode();
+            h = 31 * h + System.identityHashCode(loader);
+            h = 31 * h + (region != null ? region.hashCode() : 0);
+            h = 31 * h + (factoryClassName != null ? factoryClassName.hashCode() : 0);
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MissKey)) {
+                return false;
+            }
+            MissKey k = (MissKey) o;
+            return loader == k.loader && factoryId.equals(k.factoryId)
+                    && (region == null ? k.region == null : region.equals(k.region))
+                    && (factoryClassName == null ? k.factoryClassName == null : factoryClassName.equals(k.factoryClassName));
+        }
+    }
+
+    private static class Miss {
+        private final long generation;
+        private final Class<?> factoryClass;
+
+        Miss(long generation, Class<?> factoryClass) {
+            this.generation = generation;
+            this.factoryClass = factoryClass;
+        }
+    }
+
+    private static class Providers {
+        private final List<Callable<Class>> regional;
+        private final List<Callable<Class>> global;
+        private final List<Class<?>> classes;
+
+        Providers(List<Callable<Class>> regional, List<Callable<Class>> global, List<Class<?>> classes) {
+            this.regional = regional;
+            this.global = global;
+            this.classes = classes;
+        }
+    }
+
+    private static class Resolution {
+        private final List<Callable<Class>> candidates;
+        private final String factoryClassName;
+        private final Class<?> clazz;
+
+        Resolution(List<Callable<Class>> candidates, String factoryClassName, Class<?> clazz) {
+            this.candidates = candidates;
+            this.factoryClassName = factoryClassName;
+            this.clazz = clazz;
+        }
+
+        boolean isValid(List<Callable<Class>> l, String className) {
+            return candidates == l && (factoryClassName == null ? className == null : factoryClassName.equals(className));
+        }
+    }
+
+    private static class LocateFuture<T> implements Future<Class<? extends T>> {
+        private final Class<T> factoryClass;
+        private final String factoryId;
+        private final String region;
+        private Class<? extends T> result;
+        private boolean done;
+        private boolean cancelled;
+
+        LocateFuture(Class<T> factoryClass, String factoryId, String region) {
+            this.factoryClass = factoryClass;
+            this.factoryId = factoryId;
+            this.region = region;
+        }
+
+        boolean tryComplete() {
+            Class<? extends T> c = doLocate(factoryClass, factoryId, region);
+            if (c == null) {
+                return false;
+            }
+            synchronized (this) {
+                if (!done) {
+                    result = c;
+                    done = true;
+                    notifyAll();
+                }
+            }
+            return true;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (done) {
+                    return false;
+                }
+                cancelled = true;
+                done = true;
+                notifyAll();
+            }
+            removeWaiter(this);
+            return true;
+        }
+
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        public synchronized Class<? extends T> get() throws InterruptedException {
+            while (!done) {
+                wait();
+            }
+            return getResult();
+        }
+
+        public synchronized Class<? extends T> get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+            long end = System.nanoTime() + unit.toNanos(timeout);
+            while (!done) {
+                long left = end - System.nanoTime();
+                if (left <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            return getResult();
+        }
+
+        private Class<? extends T> getResult() {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Lookups of a factory id not registered yet wait for the pending updates
+     * of this copy of the locator that may register it, so that the copies
+     * using the view honour its barriers.
+     */
+    private static class RegistryView extends AbstractMap<String, List<Callable<Class>>> {
+        private static final RegistryView INSTANCE = new RegistryView();
+
+        @Override
+        public List<Callable<Class>> get(Object key) {
+            Map<String, List<Callable<Class>>> current = factories;
+            List<Callable<Class>> l = current != null ? current.get(key) : null;
+            if (l == null && key instanceof String && ((String) key).indexOf(REGION_SEPARATOR) < 0
+                    && awaitBarriers((String) key)) {
+                // the pending updates may register it
+                current = factories;
+                l = current != null ? current.get(key) : null;
+            }
+            return l;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Map.Entry<String, List<Callable<Class>>>> entrySet() {
+            Map<String, List<Callable<Class>>> current = factories;
+            if (current == null) {
+                return Collections.emptySet();
+            }
+            return Collections.unmodifiableMap(current).entrySet();
         }
     }
 
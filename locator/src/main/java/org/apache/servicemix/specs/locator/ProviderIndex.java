@@ -0,0 +1,158 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Merged index of the <code>META-INF/services</code> files of an application,
+ * generated when the application is packaged by the specs index maven plugin,
+ * so that the finders do not have to look for service files in each jar of
+ * the class path.
+ *
+ * The index is a plain text resource named {@link #RESOURCE}, with one
+ * <code>factoryId className</code> line per provider in class path order.
+ * Only the indexes a class loader defines itself, not the ones it sees
+ * through its parent, stand for its service files: they are read once, on
+ * the first lookup made with that class loader.
+ */
+public final class ProviderIndex {
+
+    public static final String RESOURCE = "META-INF/spec-providers.index";
+
+    private static final String HEADER = "# servicemix specs provider index v1";
+
+    private static final Map<ClassLoader, ProviderIndex> indexes = new WeakHashMap<ClassLoader, ProviderIndex>();
+
+    private final Map<String, List<String>> providers = new LinkedHashMap<String, List<String>>();
+
+    /**
+     * Return the merged indexes defined by the given class loader itself.
+     */
+    static ProviderIndex get(ClassLoader loader) {
+        synchronized (indexes) {
+            ProviderIndex index = indexes.get(loader);
+            if (index == null) {
+                index = new ProviderIndex();
+                try {
+                    Set<String> inherited = new HashSet<String>();
+                    ClassLoader parent = loader.getParent();
+                    if (parent != null) {
+                        for (Enumeration<URL> e = parent.getResources(RESOURCE); e.hasMoreElements();) {
+                            inherited.add(e.nextElement().toString());
+                        }
+                    }
+                    for (Enumeration<URL> e = loader.getResources(RESOURCE); e.hasMoreElements();) {
+                        URL url = e.nextElement();
+                        if (inherited.contains(url.toString())) {
+                            continue;
+                        }
+                        InputStream is = url.openStream();
+                        try {
+                            index.read(is);
+                        } finally {
+                            is.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    // use what could be read, the service files are still looked up
+                }
+                indexes.put(loader, index);
+            }
+            return index;
+        }
+    }
+
+    public void add(String factoryId, String className) {
+        List<String> l = providers.get(factoryId);
+        if (l == null) {
+            l = new ArrayList<String>();
+            providers.put(factoryId, l);
+        }
+        if (!l.contains(className)) {
+            l.add(className);
+        }
+    }
+
+    /**
+     * Return the first provider indexed for the given factory id, or
+     * <code>null</code> if there is none.
+     */
+    public String getProvider(String factoryId) {
+        List<String> l = providers.get(factoryId);
+        return l != null ? l.get(0) : null;
+    }
+
+    public List<String> getProviders(String factoryId) {
+        List<String> l = providers.get(factoryId);
+        return l != null ? Collections.unmodifiableList(l) : Collections.<String>emptyList();
+    }
+
+    public boolean isEmpty() {
+        return providers.isEmpty();
+    }
+
+    /**
+     * Add the providers of the given index to this one.
+     */
+    public void read(InputStream is) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        String line;
+        while ((line = br.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            if (parts.length == 2) {
+                add(parts[0], parts[1]);
+            }
+        }
+    }
+
+    public void write(OutputStream os) throws IOException {
+        Writer w = new OutputStreamWriter(os, "UTF-8");
+        w.write(HEADER);
+        w.write('\n');
+        for (Map.Entry<String, List<String>> entry : providers.entrySet()) {
+            for (String className : entry.getValue()) {
+                w.write(entry.getKey());
+                w.write(' ');
+                w.write(className);
+                w.write('\n');
+            }
+        }
+        w.flush();
+    }
+
+}
@@ -0,0 +1,36 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+/**
+ * Listener notified when the providers of a factory id change, so that the
+ * callers caching what they resolved can invalidate it instead of resolving
+ * it again on each call.
+ *
+ * @see OsgiLocator#addProviderListener(String, ProviderListener)
+ */
+public interface ProviderListener {
+
+    /**
+     * Called after providers have been registered or unregistered for the
+     * given factory id.  Notifications are delivered outside of the registry
+     * lock, possibly from another thread than the one updating the registry,
+     * and several updates of the same id may be reported by a single call.
+     */
+    void providersChanged(String factoryId);
+
+}
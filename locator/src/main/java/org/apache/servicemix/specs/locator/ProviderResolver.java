@@ -0,0 +1,389 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolves the provider class name of a factory id through a chain of
+ * {@link Step}s, as done by the spec finders when no provider is registered
+ * in OSGi: system property, <code>$java.home/lib</code> properties file,
+ * <code>META-INF/services</code> and so on, in the order mandated by each
+ * spec.
+ *
+ * Results, including the absence of any provider, are cached per factory id,
+ * class loader and value of the system property named after the factory id.
+ * The cache is dropped each time the {@link OsgiLocator} registry changes,
+ * since bundles coming and going may change what class loaders can see.  It
+ * is weakly keyed by class loader and only weakly references the class
+ * loaders of the providers, so it does not keep undeployed applications
+ * alive.  Loading and instantiating the provider is left to the finders so
+ * that each of them keeps reporting errors the way its spec requires.
+ *
+ * Only finders that instantiate the single provider resolved, and fail if it
+ * can not be, use this class: the JAXP parsers, transform and datatype ones
+ * and the StAX one.  The others keep their own lookup since they can not be
+ * expressed as a chain of steps returning a single class name:
+ * <ul>
+ * <li>the XPath and validation finders instantiate each candidate in turn and
+ * ask it whether it supports a given object model or schema language;</li>
+ * <li>the JAX-WS, JAX-RS and SAAJ finders go on with the next step when the
+ * provider found by a step can not be instantiated;</li>
+ * <li>the JAXB finder first looks for <code>jaxb.properties</code> in the
+ * packages of the classes to bind, relative to each of them.</li>
+ * </ul>
+ */
+public final class ProviderResolver {
+
+    /**
+     * A step of the resolution.
+     */
+    public interface Step {
+
+        /**
+         * Return the provider found by this step, or <code>null</code> to
+         * continue with the next step.
+         */
+        Provider find(String factoryId, ClassLoader loader) throws Exception;
+
+    }
+
+    /**
+     * Provider found by a {@link Step}.
+     */
+    public static final class Provider {
+        private final String className;
+        private final ClassLoader classLoader;
+        private final ResolutionSource source;
+
+        public Provider(String className, ClassLoader classLoader, ResolutionSource source) {
+            this.className = className;
+            this.classLoader = classLoader;
+            this.source = source;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        /**
+         * Class loader the provider should be loaded from, usually the one
+         * given to {@link ProviderResolver#resolve(String, ClassLoader)} or,
+         * for service files, the one they were found in.
+         */
+        public ClassLoader getClassLoader() {
+            return classLoader;
+        }
+
+        public ResolutionSource getSource() {
+            return source;
+        }
+
+        @Override
+        public String toString() {
+            return className + " (" + source + ")";
+        }
+    }
+
+    /**
+     * The system property named after the factory id.
+     */
+    public static final Step SYSTEM_PROPERTY = new Step() {
+        public Provider find(String factoryId, ClassLoader loader) {
+            String className = System.getProperty(factoryId);
+            return className != null ? new Provider(className, loader, ResolutionSource.SYSTEM_PROPERTY) : null;
+        }
+    };
+
+    /**
+     * The first provider listed in <code>META-INF/services/factoryId</code>,
+     * looked up in the given class loader only, or in the system class loader
+     * when it is <code>null</code>.
+     */
+    public static final Step SERVICES = services();
+
+    /**
+     * The first provider listed in <code>META-INF/services/factoryId</code>,
+     * looked up in the given class loader, then in each of the fallback class
+     * loaders in turn, so that each finder keeps the loaders its spec
+     * mandates.  A <code>null</code> class loader stands for the system class
+     * loader.  Providers found in the {@link ProviderIndex} defined by a class
+     * loader are used without reading the service file, unless its parent has
+     * one too.
+     */
+    public static Step services(final ClassLoader... fallbacks) {
+        final ClassLoader[] loaders = fallbacks.clone();
+        return new Step() {
+            public Provider find(String factoryId, ClassLoader loader) throws Exception {
+                String serviceId = "META-INF/services/" + factoryId;
+                Provider provider = find(factoryId, serviceId, loader);
+                for (int i = 0; provider == null && i < loaders.length; i++) {
+                    if (loaders[i] != loader) {
+                        provider = find(factoryId, serviceId, loaders[i]);
+                    }
+                }
+                return provider;
+            }
+
+            private Provider find(String factoryId, String serviceId, ClassLoader cl) throws Exception {
+                if (cl != null) {
+                    String indexed = ProviderIndex.get(cl).getProvider(factoryId);
+                    // a service file seen through the parent may come first
+                    if (indexed != null && (cl.getParent() == null || cl.getParent().getResource(serviceId) == null)) {
+                        return new Provider(indexed, cl, ResolutionSource.SERVICES);
+                    }
+                }
+                InputStream is = cl != null ? cl.getResourceAsStream(serviceId) : ClassLoader.getSystemResourceAsStream(serviceId);
+                if (is == null) {
+                    return null;
+                }
+                String className = readProvider(is);
+                return className != null ? new Provider(className, cl, ResolutionSource.SERVICES) : null;
+            }
+        };
+    }
+
+    private static final Object NO_PROVIDER = new Object();
+
+    private final Step[] steps;
+
+    private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<ClassLoader>();
+
+    private final ConcurrentMap<LoaderKey, ConcurrentMap<Key, Object>> cache =
+            new ConcurrentHashMap<LoaderKey, ConcurrentMap<Key, Object>>();
+
+    private final ConcurrentMap<Key, Object> bootstrapCache = new ConcurrentHashMap<Key, Object>();
+
+    private volatile long generation = -1;
+
+    public ProviderResolver(Step... steps) {
+        this.steps = steps.clone();
+    }
+
+    /**
+     * The given properties file in <code>$java.home/lib</code>.  The file is
+     * read once, on first use.
+     */
+    public static Step propertiesFile(final String fileName) {
+        return new Step() {
+            private volatile Properties properties;
+
+            public Provider find(String factoryId, ClassLoader loader) throws Exception {
+                Properties props = properties;
+                if (props == null) {
+                    props = new Properties();
+                    File f = new File(System.getProperty("java.home") + File.separator + "lib" + File.separator + fileName);
+                    if (f.exists()) {
+                        InputStream is = new FileInputStream(f);
+                        try {
+                            props.load(is);
+                        } finally {
+                            is.close();
+                        }
+                    }
+                    properties = props;
+                }
+                String className = props.getProperty(factoryId);
+                return className != null ? new Provider(className, loader, ResolutionSource.PROPERTIES_FILE) : null;
+            }
+        };
+    }
+
+    /**
+     * Run the steps in order and return the first provider found, or
+     * <code>null</code> if none of them found one.  Steps run with the
+     * privileges of the spec and failing with an exception are skipped.
+     */
+    public Provider resolve(String factoryId, ClassLoader loader) {
+        Object event = LocatorEvents.beginResolution();
+        int tried = 0;
+        long gen = OsgiLocator.getGeneration();
+        if (gen != generation) {
+            cache.clear();
+            bootstrapCache.clear();
+            generation = gen;
+        }
+        ConcurrentMap<Key, Object> entries = getCache(loader);
+        Key key = new Key(factoryId, getProperty(factoryId));
+        Object cached = entries.get(key);
+        Provider provider = cached instanceof Resolved ? ((Resolved) cached).getProvider(loader) : null;
+        if (cached == null || (cached != NO_PROVIDER && provider == null)) {
+            for (Step step : steps) {
+                tried++;
+                try {
+                    provider = find(step, factoryId, loader);
+                    if (provider != null) {
+                        break;
+                    }
+                } catch (Exception e) {
+                    // try the next step
+                    if (LocatorConfiguration.get().isDebug()) {
+                        System.err.println("Spec: step " + tried + " resolving " + factoryId + " failed: " + e);
+                    }
+                }
+            }
+            if (gen == OsgiLocator.getGeneration()) {
+                entries.put(key, provider != null ? new Resolved(provider, loader) : NO_PROVIDER);
+            }
+        }
+        if (provider == null) {
+            return null;
+        }
+        LocatorStatistics.recordResolution(factoryId, provider.getSource(), event, tried);
+        return provider;
+    }
+
+    /**
+     * Run the step with the privileges of the spec, as the finders did when
+     * reading system properties and resources themselves.
+     */
+    private static Provider find(final Step step, final String factoryId, final ClassLoader loader) throws Exception {
+        try {
+            return AccessController.doPrivileged(new PrivilegedExceptionAction<Provider>() {
+                public Provider run() throws Exception {
+                    return step.find(factoryId, loader);
+                }
+            });
+        } catch (PrivilegedActionException e) {
+            throw e.getException();
+        }
+    }
+
+    private static String getProperty(final String name) {
+        try {
+            return AccessController.doPrivileged(new PrivilegedAction<String>() {
+                public String run() {
+                    return System.getProperty(name);
+                }
+            });
+        } catch (SecurityException e) {
+            return null;
+        }
+    }
+
+    private ConcurrentMap<Key, Object> getCache(ClassLoader loader) {
+        if (loader == null) {
+            return bootstrapCache;
+        }
+        ConcurrentMap<Key, Object> entries = cache.get(new LoaderKey(loader, null));
+        if (entries == null) {
+            Reference<? extends ClassLoader> ref;
+            while ((ref = queue.poll()) != null) {
+                cache.remove(ref);
+            }
+            entries = new ConcurrentHashMap<Key, Object>();
+            ConcurrentMap<Key, Object> old = cache.putIfAbsent(new LoaderKey(loader, queue), entries);
+            if (old != null) {
+                entries = old;
+            }
+        }
+        return entries;
+    }
+
+    private static String readProvider(InputStream is) throws Exception {
+        BufferedReader br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if (line.length() > 0) {
+                    return line;
+                }
+            }
+            return null;
+        } finally {
+            br.close();
+        }
+    }
+
+    /**
+     * Cached provider, weakly referencing the class loader it comes from when
+     * it is not the one it has been resolved for.
+     */
+    private static final class Resolved {
+        private final String className;
+        private final ResolutionSource source;
+        private final Reference<ClassLoader> classLoader;
+
+        Resolved(Provider provider, ClassLoader loader) {
+            this.className = provider.getClassName();
+            this.source = provider.getSource();
+            this.classLoader = provider.getClassLoader() != loader
+                    ? new WeakReference<ClassLoader>(provider.getClassLoader()) : null;
+        }
+
+        /**
+         * @return the provider, or <code>null</code> if its class loader has
+         *         been collected meanwhile
+         */
+        Provider getProvider(ClassLoader loader) {
+            ClassLoader cl = classLoader != null ? classLoader.get() : loader;
+            return cl != null || classLoader == null ? new Provider(className, cl, source) : null;
+        }
+    }
+
+    private static class Key {
+        private final String factoryId;
+        private final String factoryClassName;
+        private final int hash;
+
+        Key(String factoryId, String factoryClassName) {
+            this.factoryId = factoryId;
+            this.factoryClassName = factoryClassName;
+            int h = factoryId.hashCode();
+            h = 31 * h + (factoryClassName != null ? factoryClassName.hashCode() : 0);
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return factoryId.equals(k.factoryId)
+                    && (factoryClassName == null ? k.factoryClassName == null : factoryClassName.equals(k.factoryClassName));
+        }
+    }
+
+}
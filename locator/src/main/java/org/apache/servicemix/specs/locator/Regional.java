@@ -0,0 +1,33 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+/**
+ * Implemented by factories registered in the {@link OsgiLocator} that belong
+ * to a region, i.e. a set of bundles sharing the same class space in a
+ * multi-tenant container.  Lookups made for a region only see the factories
+ * of that region, then the factories without any region.
+ */
+public interface Regional {
+
+    /**
+     * @return the region of the factory, or <code>null</code> if it is visible
+     *         from all regions
+     */
+    String getRegion();
+
+}
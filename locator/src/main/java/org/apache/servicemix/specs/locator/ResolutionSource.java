@@ -0,0 +1,39 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+/**
+ * Where a spec finder found the provider it returned.
+ */
+public enum ResolutionSource {
+
+    /** A provider registered in the OSGi registry. */
+    OSGI,
+
+    /** The system property named after the factory id. */
+    SYSTEM_PROPERTY,
+
+    /** A properties file in <code>${java.home}/lib</code>. */
+    PROPERTIES_FILE,
+
+    /** A <code>META-INF/services</code> resource visible to the class loader. */
+    SERVICES,
+
+    /** The default implementation hard-coded in the spec API. */
+    FALLBACK
+
+}
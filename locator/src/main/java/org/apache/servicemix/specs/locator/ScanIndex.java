@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Index of the service files found in each bundle, persisted in the bundle
+ * data area of the activator so that unchanged bundles do not need to be
+ * scanned again on restart.
+ *
+ * For each bundle, the index holds a stamp of the bundle content when it was
+ * scanned, made of the last modification time of the bundle and of its
+ * attached fragments, and, for each service file, the first provider class
+ * name found in it.  The file is a plain text file with one
+ * <code>bundleId stamp factoryId className</code> line per service file, and
+ * a <code>bundleId stamp</code> line for bundles without any.
+ */
+class ScanIndex {
+
+    private static final String HEADER = "# servicemix specs scan index v1";
+
+    private final File file;
+
+    private final ConcurrentMap<Long, Entry> entries = new ConcurrentHashMap<Long, Entry>();
+
+    private volatile boolean dirty;
+
+    ScanIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Return the service files of the given bundle, mapping factory ids to
+     * provider class names, or <code>null</code> if the bundle is not indexed
+     * or has changed since.
+     */
+    Map<String, String> get(long bundleId, String stamp) {
+        Entry entry = entries.get(bundleId);
+        if (entry != null && entry.stamp.equals(stamp)) {
+            return entry.providers;
+        }
+        return null;
+    }
+
+    void put(long bundleId, String stamp, Map<String, String> providers) {
+        for (Map.Entry<String, String> p : providers.entrySet()) {
+            if (p.getKey().indexOf(' ') >= 0 || p.getValue().indexOf(' ') >= 0) {
+                // can not be written, rescan this bundle next time
+                remove(bundleId);
+                return;
+            }
+        }
+        entries.put(bundleId, new Entry(stamp, Collections.unmodifiableMap(new HashMap<String, String>(providers))));
+        dirty = true;
+    }
+
+    void remove(long bundleId) {
+        if (entries.remove(bundleId) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Drop the entries of bundles that are no longer installed.
+     */
+    void retain(Collection<Long> bundleIds) {
+        Set<Long> ids = new HashSet<Long>(bundleIds);
+        for (Iterator<Long> it = entries.keySet().iterator(); it.hasNext();) {
+            if (!ids.contains(it.next())) {
+                it.remove();
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Read the index from disk.  A missing, unreadable or corrupted file
+     * simply leaves the index empty.
+     */
+    void load() {
+        entries.clear();
+        if (file == null || !file.isFile()) {
+            return;
+        }
+        Map<Long, Entry> loaded = new HashMap<Long, Entry>();
+        try {
+            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                if (!HEADER.equals(br.readLine())) {
+                    return;
+                }
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] parts = line.split(" ");
+                    if (parts.length != 2 && parts.length != 4) {
+                        return;
+                    }
+                    Long bundleId = Long.valueOf(parts[0]);
+                    Entry entry = loaded.get(bundleId);
+                    if (entry == null) {
+                        entry = new Entry(parts[1], new HashMap<String, String>());
+                        loaded.put(bundleId, entry);
+                    }
+                    if (parts.length == 4) {
+                        entry.providers.put(parts[2], parts[3]);
+                    }
+                }
+            } finally {
+                br.close();
+            }
+        } catch (Exception e) {
+            return;
+        }
+        for (Map.Entry<Long, Entry> e : loaded.entrySet()) {
+            Entry entry = e.getValue();
+            entries.put(e.getKey(), new Entry(entry.stamp, Collections.unmodifiableMap(entry.providers)));
+        }
+        dirty = false;
+    }
+
+    /**
+     * Write the index to disk if it has changed since it was loaded.  The
+     * file is written aside and renamed so that a crash never leaves a
+     * truncated index behind.
+     */
+    void save() throws IOException {
+        if (file == null || !dirty) {
+            return;
+        }
+        dirty = false;
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            w.write(HEADER);
+            w.write('\n');
+            for (Map.Entry<Long, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                String prefix = e.getKey() + " " + entry.stamp;
+                if (entry.providers.isEmpty()) {
+                    w.write(prefix);
+                    w.write('\n');
+                }
+                for (Map.Entry<String, String> p : entry.providers.entrySet()) {
+                    w.write(prefix + " " + p.getKey() + " " + p.getValue());
+                    w.write('\n');
+                }
+            }
+        } finally {
+            w.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                dirty = true;
+                throw new IOException("Unable to write " + file);
+            }
+        }
+    }
+
+    private static class Entry {
+        final String stamp;
+        final Map<String, String> providers;
+
+        Entry(String stamp, Map<String, String> providers) {
+            this.stamp = stamp;
+            this.providers = providers;
+        }
+    }
+
+}
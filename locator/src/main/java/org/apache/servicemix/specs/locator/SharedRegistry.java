@@ -0,0 +1,305 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Registry shared by the locators embedded in the spec bundles, see
+ * {@link Activator#SHARED}.
+ *
+ * Each locator first registers its registry as a <code>java.util.Map</code>
+ * service, not yet {@link #READY_PROPERTY ready}, and then looks at all the
+ * registered ones: the one with the lowest service id owns the shared
+ * registry, scans the bundles as usual and marks it ready, while the other
+ * ones unregister theirs and look their providers up in the owner's instead
+ * of scanning.  Since service ids only grow, all locators agree on the owner
+ * even when they start concurrently.
+ *
+ * Only JDK types cross the service boundary, since each spec bundle has its
+ * own copy of the locator classes.  Asked for a factory id it has no
+ * provider for, the published map waits for the updates the owner has not
+ * applied yet that may register one, including its startup scan, so that the
+ * other locators honour its barriers.
+ * The owner bumps a service property each time its registry changes so that
+ * the other locators drop what they cached.  When the owner goes away, the
+ * locators elect a new one the same way, which takes over and scans the
+ * bundles itself.
+ */
+class SharedRegistry implements ServiceListener {
+
+    static final String REGISTRY_PROPERTY = "org.apache.servicemix.specs.registry";
+    static final String GENERATION_PROPERTY = "org.apache.servicemix.specs.registry.generation";
+    static final String READY_PROPERTY = "org.apache.servicemix.specs.registry.ready";
+
+    private static final String FILTER = "(&(" + Constants.OBJECTCLASS + "=" + Map.class.getName() + ")("
+            + REGISTRY_PROPERTY + "=shared))";
+
+    private final BundleContext bundleContext;
+    private final Runnable takeOver;
+
+    /**
+     * Registry of another bundle currently in use, if any.
+     */
+    private ServiceReference reference;
+
+    /**
+     * Registration of the registry of this bundle once it owns it.
+     */
+    private volatile ServiceRegistration registration;
+
+    /**
+     * Barrier held by the owner until its registry is ready.
+     */
+    private CountDownLatch startup;
+
+    /**
+     * @param takeOver called, with the activator not consuming any registry
+     *                 anymore, when this bundle is elected as the new owner
+     *                 after the previous one went away
+     */
+    SharedRegistry(BundleContext bundleContext, Runnable takeOver) {
+        this.bundleContext = bundleContext;
+        this.takeOver = takeOver;
+    }
+
+    /**
+     * Start using the registry owned by another bundle, unless this one is
+     * elected as the owner.
+     *
+     * @return <code>false</code> if this bundle owns the shared registry, in
+     *         which case the caller should scan the bundles and
+     *         {@link #publish()} it
+     */
+    boolean open() throws InvalidSyntaxException {
+        bundleContext.addServiceListener(this, FILTER);
+        return !claim(null);
+    }
+
+    synchronized void close() {
+        bundleContext.removeServiceListener(this);
+        release();
+        if (registration != null) {
+            OsgiLocator.setChangeListener(null);
+            try {
+                registration.unregister();
+            } catch (IllegalStateException e) {
+                // already unregistered
+            }
+            registration = null;
+        }
+        releaseStartup();
+        OsgiLocator.useSharedRegistry(null);
+    }
+
+    /**
+     * Whether the providers are looked up in the registry of another bundle,
+     * in which case bundle events can be ignored.
+     */
+    synchronized boolean isConsuming() {
+        return reference != null;
+    }
+
+    /**
+     * Mark the registry of this bundle as ready once the bundles have been
+     * scanned, letting the other locators use it.
+     */
+    synchronized void publish() {
+        // stop listening, there is no need to track the other owners
+        bundleContext.removeServiceListener(this);
+        if (registration == null) {
+            return;
+        }
+        CountDownLatch barrier = startup;
+        startup = null;
+        try {
+            registration.setProperties(getProperties());
+        } catch (IllegalStateException e) {
+            // unregistered meanwhile
+        }
+        if (barrier != null) {
+            OsgiLocator.releaseBarrier(barrier);
+        }
+        OsgiLocator.setChangeListener(new Runnable() {
+            public void run() {
+                ServiceRegistration reg = registration;
+                if (reg != null) {
+                    try {
+                        reg.setProperties(getProperties());
+                    } catch (IllegalStateException e) {
+                        // unregistered meanwhile
+                    }
+                }
+            }
+        });
+    }
+
+    private Dictionary<String, Object> getProperties() {
+        Dictionary<String, Object> props = new Hashtable<String, Object>();
+        props.put(REGISTRY_PROPERTY, "shared");
+        props.put(GENERATION_PROPERTY, Long.valueOf(OsgiLocator.getGeneration()));
+        props.put(READY_PROPERTY, Boolean.valueOf(startup == null));
+        return props;
+    }
+
+    public void serviceChanged(ServiceEvent event) {
+        ServiceReference gone;
+        synchronized (this) {
+            if (reference == null || !reference.equals(event.getServiceReference())) {
+                return;
+            }
+            if (event.getType() == ServiceEvent.MODIFIED) {
+                OsgiLocator.sharedRegistryChanged();
+                return;
+            }
+            if (event.getType() != ServiceEvent.UNREGISTERING) {
+                return;
+            }
+            gone = reference;
+            release();
+        }
+        boolean orphaned;
+        try {
+            orphaned = claim(gone);
+        } catch (InvalidSyntaxException e) {
+            orphaned = false;
+        }
+        if (orphaned) {
+            // lookups wait for the startup barrier until the bundles are scanned
+            OsgiLocator.setUpdating(true);
+            try {
+                OsgiLocator.useSharedRegistry(null);
+                takeOver.run();
+            } finally {
+                OsgiLocator.setUpdating(false);
+            }
+        }
+    }
+
+    /**
+     * Register the registry of this bundle, not ready yet, and keep it if it
+     * is the oldest registered one other than the given one, which is going
+     * away.  Otherwise
+     * unregister it and switch to the oldest one.
+     *
+     * The registration is done without holding the lock of this registry, as
+     * the service events are delivered synchronously to the other locators.
+     *
+     * @return <code>true</code> if this bundle owns the shared registry
+     */
+    private boolean claim(ServiceReference gone) throws InvalidSyntaxException {
+        List<ServiceReference> excluded = new ArrayList<ServiceReference>();
+        if (gone != null) {
+            excluded.add(gone);
+        }
+        for (;;) {
+            CountDownLatch barrier = OsgiLocator.addBarrier();
+            synchronized (this) {
+                startup = barrier;
+            }
+            ServiceRegistration claim = bundleContext.registerService(Map.class.getName(),
+                                                                      OsgiLocator.getRegistryView(), getProperties());
+            ServiceReference own = claim.getReference();
+            ServiceReference best = null;
+            ServiceReference[] refs = bundleContext.getServiceReferences(Map.class.getName(), FILTER);
+            if (refs != null) {
+                for (ServiceReference ref : refs) {
+                    if (excluded.contains(ref)) {
+                        continue;
+                    }
+                    if (best == null || getServiceId(ref) < getServiceId(best)) {
+                        best = ref;
+                    }
+                }
+            }
+            if (best == null || best.equals(own)) {
+                synchronized (this) {
+                    registration = claim;
+                }
+                return true;
+            }
+            try {
+                claim.unregister();
+            } catch (IllegalStateException e) {
+                // already unregistered
+            }
+            synchronized (this) {
+                releaseStartup();
+                if (use(best)) {
+                    return false;
+                }
+            }
+            // the owner went away meanwhile, elect again
+            excluded.add(best);
+        }
+    }
+
+    /**
+     * Switch to the given registry.
+     */
+    private boolean use(ServiceReference best) {
+        Map<String, List<Callable<Class>>> registry;
+        try {
+            registry = (Map<String, List<Callable<Class>>>) bundleContext.getService(best);
+        } catch (ClassCastException e) {
+            registry = null;
+        }
+        if (registry == null) {
+            return false;
+        }
+        reference = best;
+        OsgiLocator.useSharedRegistry(registry);
+        return true;
+    }
+
+    private void releaseStartup() {
+        if (startup != null) {
+            OsgiLocator.releaseBarrier(startup);
+            startup = null;
+        }
+    }
+
+    private void release() {
+        if (reference != null) {
+            try {
+                bundleContext.ungetService(reference);
+            } catch (IllegalStateException e) {
+                // the context is no longer valid
+            }
+            reference = null;
+        }
+    }
+
+    private static long getServiceId(ServiceReference ref) {
+        Object id = ref.getProperty(Constants.SERVICE_ID);
+        return id instanceof Long ? ((Long) id).longValue() : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Reads the wiring of the bundles.  The wiring API is only available on OSGi
+ * R4.3 frameworks and later and the spec bundles import it optionally, so
+ * this class is only loaded once the {@link Activator} has checked that the
+ * import is wired.
+ */
+final class Wiring {
+
+    private Wiring() {
+    }
+
+    /**
+     * Last modification time of the fragments attached to the given bundle,
+     * by fragment id, or <code>null</code> if the bundle is not resolved.
+     */
+    static Map<Long, Long> getFragments(Bundle bundle) {
+        BundleWiring wiring = bundle.adapt(BundleWiring.class);
+        List<BundleWire> wires = wiring != null ? wiring.getProvidedWires(BundleRevision.HOST_NAMESPACE) : null;
+        if (wires == null) {
+            return null;
+        }
+        Map<Long, Long> fragments = new TreeMap<Long, Long>();
+        for (BundleWire wire : wires) {
+            Bundle fragment = wire.getRequirerWiring().getBundle();
+            fragments.put(fragment.getBundleId(), fragment.getLastModified());
+        }
+        return fragments;
+    }
+
+    /**
+     * Class loader providing each package imported by the given bundle,
+     * or <code>null</code> if the bundle is not resolved.
+     */
+    static Map<String, ClassLoader> getImportedPackages(Bundle bundle) {
+        BundleWiring wiring = bundle.adapt(BundleWiring.class);
+        if (wiring == null) {
+            return null;
+        }
+        Map<String, ClassLoader> imports = new HashMap<String, ClassLoader>();
+        List<BundleWire> wires = wiring.getRequiredWires(BundleRevision.PACKAGE_NAMESPACE);
+        if (wires != null) {
+            for (BundleWire wire : wires) {
+                Object pkg = wire.getCapability().getAttributes().get(BundleRevision.PACKAGE_NAMESPACE);
+                BundleWiring provider = wire.getProviderWiring();
+                if (pkg instanceof String && provider != null) {
+                    imports.put((String) pkg, provider.getClassLoader());
+                }
+            }
+        }
+        return imports;
+    }
+
+}
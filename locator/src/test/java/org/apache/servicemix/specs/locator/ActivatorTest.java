@@ -0,0 +1,416 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleReference;
+import org.osgi.framework.ServiceReference;
+
+public class ActivatorTest extends Assert {
+
+    private File dataDir;
+
+    @Before
+    public void setUp() throws IOException {
+        System.setProperty(OsgiLocator.TIMEOUT, "0");
+        OsgiLocator.refreshConfiguration();
+        dataDir = File.createTempFile("activator", "");
+        dataDir.delete();
+        dataDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(Activator.ASYNC);
+        System.clearProperty(Activator.SCAN_INDEX);
+        System.clearProperty(Activator.SCAN_THREADS);
+        System.clearProperty(Activator.PREWARM);
+        System.clearProperty(Activator.SHARED);
+        File[] files = dataDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dataDir.delete();
+    }
+
+    @Test
+    public void testProvidersHeader() {
+        Activator activator = new Activator();
+        Map<String, String> providers = new HashMap<String, String>();
+        MockBundle bundle = new MockBundle(5)
+                .header(Activator.PROVIDERS_HEADER, " a = org.acme.A ,b=org.acme.B,, invalid, =org.acme.C, d= ");
+        assertTrue("Expected the header to be complete", activator.readProvidersHeader(bundle.getBundle(), providers));
+        Map<String, String> expected = new HashMap<String, String>();
+        expected.put("a", "org.acme.A");
+        expected.put("b", "org.acme.B");
+        assertEquals(expected, providers);
+
+        providers.clear();
+        bundle.header(Activator.PROVIDERS_HEADER, "a=org.acme.A, *");
+        assertFalse("Expected the service files to be read too", activator.readProvidersHeader(bundle.getBundle(), providers));
+        assertEquals(Collections.singletonMap("a", "org.acme.A"), providers);
+
+        providers.clear();
+        assertFalse(activator.readProvidersHeader(new MockBundle(6).getBundle(), providers));
+        assertTrue(providers.isEmpty());
+    }
+
+    @Test
+    public void testDeclaredProviders() throws Exception {
+        Activator activator = new Activator();
+        MockBundle declared = new MockBundle(7)
+                .header(Activator.PROVIDERS_HEADER, "DeclaredFactory=" + MockCallable.class.getName())
+                .service("UndeclaredFactory", MockCallable.class.getName());
+        MockBundle merged = new MockBundle(8)
+                .header(Activator.PROVIDERS_HEADER, "MergedFactory=" + MockCallable.class.getName() + ",*")
+                .service("MergedFactory", MockCallable2.class.getName())
+                .service("MergedServiceFactory", MockCallable2.class.getName());
+        activator.register(declared.getBundle());
+        activator.register(merged.getBundle());
+        try {
+            assertEquals(MockCallable.class, OsgiLocator.locate(Object.class, "DeclaredFactory"));
+            assertNull("Did not expect the service files to be read", OsgiLocator.locate(Object.class, "UndeclaredFactory"));
+            assertEquals(0, declared.getScans());
+            assertEquals("Expected the header to take precedence",
+                         MockCallable.class, OsgiLocator.locate(Object.class, "MergedFactory"));
+            assertEquals(MockCallable2.class, OsgiLocator.locate(Object.class, "MergedServiceFactory"));
+            assertEquals(1, merged.getScans());
+        } finally {
+            activator.unregister(7);
+            activator.unregister(8);
+        }
+    }
+
+    @Test
+    public void testParallelStartupScan() throws Exception {
+        System.setProperty(Activator.SCAN_THREADS, "4");
+        MockBundleContext context = new MockBundleContext(new MockBundle(1), dataDir);
+        MockBundle[] providers = new MockBundle[8];
+        for (int i = 0; i < providers.length; i++) {
+            providers[i] = new MockBundle(10 + i).service("ParallelFactory" + i, MockCallable.class.getName());
+            context.install(providers[i]);
+        }
+        Activator activator = new Activator();
+        activator.start(context.getBundleContext());
+        try {
+            for (int i = 0; i < providers.length; i++) {
+                assertEquals(MockCallable.class, OsgiLocator.locate(Object.class, "ParallelFactory" + i));
+                assertEquals("Expected each bundle to be scanned once", 1, providers[i].getScans());
+            }
+        } finally {
+            activator.stop(context.getBundleContext());
+        }
+        assertNull(OsgiLocator.locate(Object.class, "ParallelFactory0"));
+    }
+
+    @Test
+    public void testPrewarm() throws Exception {
+        System.setProperty(Activator.PREWARM, "PrewarmFactory");
+        MockBundle provider = new MockBundle(10)
+                .service("PrewarmFactory", MockCallable.class.getName())
+                .service("ColdFactory", MockCallable2.class.getName());
+        MockBundleContext context = new MockBundleContext(new MockBundle(1), dataDir).install(provider);
+        Activator activator = new Activator();
+        activator.start(context.getBundleContext());
+        try {
+            for (int i = 0; i < 100 && provider.getLoads() == 0; i++) {
+                Thread.sleep(50);
+            }
+            Thread.sleep(50);
+            assertEquals("Expected only the listed provider to be loaded", 1, provider.getLoads());
+            assertEquals(MockCallable.class, OsgiLocator.locate(Object.class, "PrewarmFactory"));
+            assertEquals(MockCallable2.class, OsgiLocator.locate(Object.class, "ColdFactory"));
+        } finally {
+            activator.stop(context.getBundleContext());
+        }
+    }
+
+    @Test
+    public void testAsyncIndexing() throws Exception {
+        System.setProperty(Activator.ASYNC, "true");
+        System.setProperty(Activator.SCAN_INDEX, "false");
+        MockBundleContext context = new MockBundleContext(new MockBundle(1), dataDir);
+        MockBundle provider = new MockBundle(10).service("AsyncFactory", MockCallable.class.getName());
+        Activator activator = new Activator();
+        activator.start(context.getBundleContext());
+        try {
+            context.install(provider).fire(BundleEvent.RESOLVED, provider);
+            assertEquals("Expected the lookup to wait for the bundle to be indexed",
+                         MockCallable.class, OsgiLocator.locate(Object.class, "AsyncFactory"));
+            context.fire(BundleEvent.UNRESOLVED, provider);
+            context.fire(BundleEvent.RESOLVED, provider);
+        } finally {
+            activator.stop(context.getBundleContext());
+        }
+        // the service files are listed when an event is queued and when it is handled
+        assertEquals("Expected the pending events to be handled on stop", 4, provider.getScans());
+        assertNull(OsgiLocator.locate(Object.class, "AsyncFactory"));
+    }
+
+    @Test
+    public void testSharedRegistry() throws Exception {
+        System.setProperty(Activator.SHARED, "true");
+        System.setProperty(Activator.SCAN_INDEX, "false");
+        MockBundleContext first = new MockBundleContext(new MockBundle(1), dataDir);
+        MockBundleContext second = first.sibling(new MockBundle(2));
+        MockBundle provider = new MockBundle(10).service("SharedFactory", MockCallable.class.getName());
+        first.install(provider);
+        Activator owner = new Activator();
+        Activator consumer = new Activator();
+        owner.start(first.getBundleContext());
+        try {
+            consumer.start(second.getBundleContext());
+            try {
+                assertEquals("Expected a single bundle to scan", 1, provider.getScans());
+                List<ServiceReference> refs = first.getServices(Map.class.getName());
+                assertEquals(1, refs.size());
+                assertSame(first.getBundleContext().getBundle(), refs.get(0).getBundle());
+                assertEquals(Boolean.TRUE, refs.get(0).getProperty(SharedRegistry.READY_PROPERTY));
+                assertEquals(MockCallable.class, OsgiLocator.locate(Object.class, "SharedFactory"));
+
+                first.fire(BundleEvent.UNRESOLVED, provider);
+                second.fire(BundleEvent.UNRESOLVED, provider);
+                first.fire(BundleEvent.RESOLVED, provider);
+                second.fire(BundleEvent.RESOLVED, provider);
+                assertEquals("Expected the consumer to ignore bundle events", 2, provider.getScans());
+
+                owner.stop(first.getBundleContext());
+                assertEquals("Expected the consumer to take over", 3, provider.getScans());
+                refs = second.getServices(Map.class.getName());
+                assertEquals(1, refs.size());
+                assertSame(second.getBundleContext().getBundle(), refs.get(0).getBundle());
+                assertEquals(Boolean.TRUE, refs.get(0).getProperty(SharedRegistry.READY_PROPERTY));
+            } finally {
+                consumer.stop(second.getBundleContext());
+            }
+        } finally {
+            owner.stop(first.getBundleContext());
+        }
+        assertTrue(first.getServices(Map.class.getName()).isEmpty());
+    }
+
+    @Test
+    public void testProvidersMustSeeTheFactoryClass() throws Exception {
+        Activator activator = new Activator();
+        MockBundle wired = new MockBundle(10)
+                .service("WiredFactory", MockCallable.class.getName())
+                .wire(MockCallable.class.getPackage().getName(), 3, MockCallable.class.getClassLoader());
+        MockBundle isolated = new MockBundle(11)
+                .loader(new DefiningClassLoader(MockCallable.class.getName()))
+                .service("IsolatedFactory", MockCallable.class.getName());
+        activator.register(wired.getBundle());
+        activator.register(isolated.getBundle());
+        try {
+            assertEquals(MockCallable.class, OsgiLocator.locate(MockCallable.class, "WiredFactory"));
+            assertEquals("Expected the wiring to be trusted without loading the factory class",
+                         1, wired.getLoads());
+            assertNull("Expected a provider seeing another factory class to be rejected",
+                       OsgiLocator.locate(MockCallable.class, "IsolatedFactory"));
+            Class<?> c = OsgiLocator.locate(Object.class, "IsolatedFactory");
+            assertEquals(MockCallable.class.getName(), c.getName());
+            assertNotSame(MockCallable.class, c);
+        } finally {
+            activator.unregister(10);
+            activator.unregister(11);
+        }
+    }
+
+    @Test
+    public void testScanUsesProviderIndex() throws Exception {
+        ProviderIndex index = new ProviderIndex();
+        index.add("BundleIndexedFactory", MockCallable.class.getName());
+        index.add("DependencyFactory", MockCallable2.class.getName());
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        index.write(baos);
+        MockBundle provider = new MockBundle(3)
+                .service("BundleIndexedFactory", MockCallable.class.getName())
+                .entry(ProviderIndex.RESOURCE, baos.toString("UTF-8"));
+        Activator activator = new Activator();
+        activator.register(provider.getBundle());
+        try {
+            assertEquals(MockCallable.class, OsgiLocator.locate(Object.class, "BundleIndexedFactory"));
+            assertEquals("Expected only the index to be read", 1, provider.getReads());
+            assertNull("Expected the providers of dependencies to be ignored",
+                       OsgiLocator.locate(Object.class, "DependencyFactory"));
+        } finally {
+            activator.unregister(3);
+        }
+    }
+
+    @Test
+    public void testScanIndexSeesAttachedFragments() throws Exception {
+        MockBundle host = new MockBundle(10).lastModified(1000);
+        MockBundleContext context = new MockBundleContext(new MockBundle(1), dataDir).install(host);
+        Activator activator = new Activator();
+        activator.start(context.getBundleContext());
+        try {
+            assertNull(OsgiLocator.locate(Object.class, "FragmentFactory"));
+        } finally {
+            activator.stop(context.getBundleContext());
+        }
+
+        host.fragment(new MockBundle(11).lastModified(2000).service("FragmentFactory", MockCallable.class.getName()));
+        activator = new Activator();
+        activator.start(context.getBundleContext());
+        try {
+            assertEquals("Expected the index entry of the host to be stale",
+                         MockCallable.class, OsgiLocator.locate(Object.class, "FragmentFactory"));
+        } finally {
+            activator.stop(context.getBundleContext());
+        }
+    }
+
+    @Test
+    public void testServiceFilesAreReadLazilyWithoutScanIndex() throws Exception {
+        System.setProperty(Activator.SCAN_INDEX, "false");
+        MockBundle provider = new MockBundle(10).service("LazyFactory", MockCallable.class.getName());
+        MockBundleContext context = new MockBundleContext(new MockBundle(1), dataDir).install(provider);
+        Activator activator = new Activator();
+        activator.start(context.getBundleContext());
+        try {
+            assertEquals(1, provider.getScans());
+            assertEquals("Did not expect service files to be read on scan", 0, provider.getReads());
+            assertEquals(MockCallable.class, OsgiLocator.locate(Object.class, "LazyFactory"));
+            assertEquals(1, provider.getReads());
+        } finally {
+            activator.stop(context.getBundleContext());
+        }
+    }
+
+    @Test
+    public void testLookupsInTheRegionOfTheCaller() throws Exception {
+        MockBundleContext context = new MockBundleContext(new MockBundle(1), dataDir);
+        Activator activator = new Activator();
+        activator.start(context.getBundleContext());
+        Thread thread = Thread.currentThread();
+        ClassLoader tccl = thread.getContextClassLoader();
+        try {
+            MockBundle a = new MockBundle(10).header(Activator.REGION_HEADER, "a")
+                    .header(Activator.PROVIDERS_HEADER, "TenantFactory=" + MockCallable.class.getName());
+            MockBundle b = new MockBundle(11).header(Activator.REGION_HEADER, "b")
+                    .header(Activator.PROVIDERS_HEADER, "TenantFactory=" + MockCallable2.class.getName());
+            context.install(a).fire(BundleEvent.RESOLVED, a);
+            context.install(b).fire(BundleEvent.RESOLVED, b);
+
+            thread.setContextClassLoader(new BundleLoader(new MockBundle(20).header(Activator.REGION_HEADER, "a").getBundle()));
+            assertEquals(MockCallable.class, OsgiLocator.locate(Object.class, "TenantFactory"));
+            assertEquals(Collections.singletonList(MockCallable.class), OsgiLocator.locateAll(Object.class, "TenantFactory"));
+
+            thread.setContextClassLoader(new BundleLoader(new MockBundle(21).header(Activator.REGION_HEADER, "b").getBundle()));
+            assertEquals(MockCallable2.class, OsgiLocator.locate(Object.class, "TenantFactory"));
+            assertEquals(Collections.singletonList(MockCallable2.class), OsgiLocator.locateAll(Object.class, "TenantFactory"));
+
+            thread.setContextClassLoader(new BundleLoader(new MockBundle(22).getBundle()));
+            assertNull("Did not expect providers of other regions", OsgiLocator.locate(Object.class, "TenantFactory"));
+            thread.setContextClassLoader(tccl);
+            assertNull("Did not expect providers of other regions", OsgiLocator.locate(Object.class, "TenantFactory"));
+        } finally {
+            thread.setContextClassLoader(tccl);
+            activator.stop(context.getBundleContext());
+        }
+    }
+
+    @Test
+    public void testIndexerLookupsDoNotWaitForTheirOwnEvent() throws Exception {
+        System.setProperty(Activator.ASYNC, "true");
+        System.setProperty(Activator.SCAN_INDEX, "false");
+        MockBundleContext context = new MockBundleContext(new MockBundle(1), dataDir);
+        Activator activator = new Activator();
+        activator.start(context.getBundleContext());
+        final CountDownLatch done = new CountDownLatch(1);
+        final long[] elapsed = new long[1];
+        ProviderListener listener = new ProviderListener() {
+            public void providersChanged(String factoryId) {
+                long t0 = System.currentTimeMillis();
+                OsgiLocator.locate(Object.class, "UnknownIndexedFactory");
+                elapsed[0] = System.currentTimeMillis() - t0;
+                done.countDown();
+            }
+        };
+        OsgiLocator.addProviderListener("IndexedFactory", listener);
+        try {
+            MockBundle provider = new MockBundle(2).service("IndexedFactory", MockCallable.class.getName());
+            context.install(provider).fire(BundleEvent.RESOLVED, provider);
+            assertTrue("Expected the listener to be notified", done.await(10, TimeUnit.SECONDS));
+            assertTrue("Did not expect the indexer to wait for its own event", elapsed[0] < OsgiLocator.BARRIER_TIMEOUT / 2);
+            assertEquals(MockCallable.class, OsgiLocator.locate(Object.class, "IndexedFactory"));
+        } finally {
+            OsgiLocator.removeProviderListener("IndexedFactory", listener);
+            activator.stop(context.getBundleContext());
+        }
+        assertNull(OsgiLocator.locate(Object.class, "IndexedFactory"));
+    }
+
+    private static class BundleLoader extends ClassLoader implements BundleReference {
+        private final Bundle bundle;
+
+        BundleLoader(Bundle bundle) {
+            super(BundleLoader.class.getClassLoader());
+            this.bundle = bundle;
+        }
+
+        public Bundle getBundle() {
+            return bundle;
+        }
+    }
+
+    @Test
+    public void testConstructorsCachedWhileRegistered() throws Exception {
+        Activator activator = new Activator();
+        MockBundle first = new MockBundle(60)
+                .header(Activator.PROVIDERS_HEADER, "CachedFactory=" + CachedProvider.class.getName());
+        MockBundle second = new MockBundle(61)
+                .header(Activator.PROVIDERS_HEADER, "OtherCachedFactory=" + CachedProvider.class.getName());
+        activator.register(first.getBundle());
+        activator.register(second.getBundle());
+        try {
+            assertFalse("Did not expect an unused provider to be cached", Instantiator.isCached(CachedProvider.class));
+            assertEquals(CachedProvider.class, OsgiLocator.locate(Object.class, "CachedFactory"));
+            assertEquals(CachedProvider.class, OsgiLocator.locate(Object.class, "OtherCachedFactory"));
+            assertTrue(Instantiator.isCached(CachedProvider.class));
+            assertTrue(Instantiator.newInstance(CachedProvider.class) instanceof CachedProvider);
+
+            activator.unregister(60);
+            assertTrue("Expected the other registration to keep it", Instantiator.isCached(CachedProvider.class));
+        } finally {
+            activator.unregister(60);
+            activator.unregister(61);
+        }
+        assertFalse("Expected the constructors to be evicted", Instantiator.isCached(CachedProvider.class));
+    }
+
+    public static class CachedProvider {
+    }
+
+}
@@ -0,0 +1,61 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Class loader defining its own copy of the given class from the test class
+ * path, delegating to the test class loader for the other ones.
+ */
+public class DefiningClassLoader extends ClassLoader {
+
+    private final String name;
+
+    public DefiningClassLoader(String name) {
+        super(DefiningClassLoader.class.getClassLoader());
+        this.name = name;
+    }
+
+    @Override
+    protected synchronized Class<?> loadClass(String className, boolean resolve) throws ClassNotFoundException {
+        if (!name.equals(className)) {
+            return super.loadClass(className, resolve);
+        }
+        Class<?> c = findLoadedClass(className);
+        if (c == null) {
+            try {
+                InputStream is = getParent().getResourceAsStream(className.replace('.', '/') + ".class");
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                byte[] buf = new byte[4096];
+                int n;
+                while ((n = is.read(buf)) > 0) {
+                    baos.write(buf, 0, n);
+                }
+                is.close();
+                byte[] b = baos.toByteArray();
+                c = defineClass(className, b, 0, b.length);
+            } catch (IOException e) {
+                throw new ClassNotFoundException(className, e);
+            }
+        }
+        return c;
+    }
+
+}
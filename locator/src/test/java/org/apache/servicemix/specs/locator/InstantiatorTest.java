@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InstantiatorTest extends Assert {
+
+    @Test
+    public void testNewInstance() throws Exception {
+        Object o1 = Instantiator.newInstance(MockCallable.class);
+        Object o2 = Instantiator.newInstance(MockCallable.class);
+        assertTrue("Got the wrong instance", o1 instanceof MockCallable);
+        assertNotSame("Expected a new instance", o1, o2);
+    }
+
+    @Test
+    public void testNewInstanceWithParameters() throws Exception {
+        StringBuilder sb = Instantiator.newInstance(StringBuilder.class, new Class<?>[] { String.class }, "spec");
+        assertEquals("Got the wrong instance", "spec", sb.toString());
+    }
+
+    @Test
+    public void testNewInstanceWithFailingConstructor() throws Exception {
+        try {
+            Instantiator.newInstance(FailingProvider.class);
+            fail("Expected an InstantiationException");
+        } catch (InstantiationException e) {
+            assertTrue("Got the wrong cause", e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testCacheDoesNotRetainClassLoaders() throws Exception {
+        ClassLoader loader = new DefiningClassLoader(MockCallable.class.getName());
+        Class<?> type = loader.loadClass(MockCallable.class.getName());
+        assertSame(loader, Instantiator.newInstance(type).getClass().getClassLoader());
+
+        WeakReference<ClassLoader> ref = new WeakReference<ClassLoader>(loader);
+        loader = null;
+        type = null;
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull("Expected the class loader to be collected", ref.get());
+    }
+
+    @Test
+    public void testRetainedConstructors() throws Exception {
+        assertFalse(Instantiator.isCached(RetainedProvider.class));
+        Instantiator.retain(RetainedProvider.class);
+        Instantiator.retain(RetainedProvider.class);
+        try {
+            assertTrue(Instantiator.isCached(RetainedProvider.class));
+            assertNotSame("Expected a new instance", Instantiator.newInstance(RetainedProvider.class),
+                          Instantiator.newInstance(RetainedProvider.class));
+            assertEquals("spec", Instantiator.newInstance(RetainedProvider.class, new Class<?>[] { String.class }, "spec").name);
+            System.gc();
+            assertTrue("Expected the constructors to be strongly held", Instantiator.isCached(RetainedProvider.class));
+            Instantiator.release(RetainedProvider.class);
+            assertTrue("Expected the other retention to keep them", Instantiator.isCached(RetainedProvider.class));
+        } finally {
+            Instantiator.release(RetainedProvider.class);
+        }
+        assertFalse(Instantiator.isCached(RetainedProvider.class));
+    }
+
+    public static class RetainedProvider {
+        private final String name;
+
+        public RetainedProvider() {
+            this(null);
+        }
+
+        public RetainedProvider(String name) {
+            this.name = name;
+        }
+    }
+
+    public static class FailingProvider {
+        public FailingProvider() throws IOException {
+            throw new IOException("failed");
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LocatorEventsTest extends Assert {
+
+    private static final String LOOKUP = "org.apache.servicemix.specs.Lookup";
+
+    @Test
+    public void testEventsAreOnlyCreatedWhileRecording() throws Exception {
+        assertNull("Did not expect an event without recording", LocatorEvents.beginLookup());
+        Class<?> recordingClass;
+        try {
+            recordingClass = Class.forName("jdk.jfr.Recording");
+        } catch (ClassNotFoundException e) {
+            // no JFR on this JVM
+            return;
+        }
+        Object recording = recordingClass.newInstance();
+        recordingClass.getMethod("enable", String.class).invoke(recording, LOOKUP);
+        recordingClass.getMethod("start").invoke(recording);
+        try {
+            Object event = LocatorEvents.beginLookup();
+            assertNotNull("Expected an event while recording", event);
+            LocatorEvents.commitLookup(event, "Factory", 1, "REGISTRY", 0);
+            LocatorEvents.commitResolution(null, "Factory", ResolutionSource.OSGI, 1);
+        } finally {
+            recordingClass.getMethod("stop").invoke(recording);
+            recordingClass.getMethod("close").invoke(recording);
+        }
+        assertNull("Did not expect an event once the recording stopped", LocatorEvents.beginLookup());
+    }
+
+}
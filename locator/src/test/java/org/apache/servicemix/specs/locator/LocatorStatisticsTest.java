@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocatorStatisticsTest extends Assert {
+
+    private final LocatorStatistics statistics = new LocatorStatistics();
+
+    @Before
+    public void enable() {
+        statistics.reset();
+        statistics.setEnabled(true);
+    }
+
+    @After
+    public void disable() {
+        statistics.setEnabled(false);
+        statistics.reset();
+    }
+
+    @Test
+    public void testLookupsAreRecorded() {
+        MockCallable callable = new MockCallable();
+        OsgiLocator.register("StatisticsFactory", callable);
+        try {
+            assertNotNull(OsgiLocator.locate(Object.class, "StatisticsFactory", 0));
+            assertNotNull(OsgiLocator.locate(Object.class, "StatisticsFactory", 0));
+            assertNull(OsgiLocator.locate(Object.class, "MissingStatisticsFactory", 0));
+            LocatorStatistics.recordResolution("MissingStatisticsFactory", ResolutionSource.SERVICES);
+
+            assertEquals(2, statistics.getHits("StatisticsFactory"));
+            assertEquals(0, statistics.getMisses("StatisticsFactory"));
+            assertEquals(1, statistics.getMisses("MissingStatisticsFactory"));
+            assertEquals(1, statistics.getResolutions("MissingStatisticsFactory", "SERVICES"));
+
+            long total = 0;
+            for (long count : statistics.getLatencyHistogram("StatisticsFactory")) {
+                total += count;
+            }
+            assertEquals(2, total);
+        } finally {
+            OsgiLocator.unregister("StatisticsFactory", callable);
+        }
+    }
+
+    @Test
+    public void testRegistryResolutionsAreRecordedByTheLocator() throws Exception {
+        MockCallable callable = new MockCallable();
+        OsgiLocator.register("StatisticsFactory", callable);
+        try {
+            assertNotNull(OsgiLocator.locate(Object.class, "StatisticsFactory", 0));
+            assertNotNull(OsgiLocator.locateInstance(Object.class, "StatisticsFactory"));
+            assertNull(OsgiLocator.locate(Object.class, "MissingStatisticsFactory", 0));
+
+            assertEquals(2, statistics.getResolutions("StatisticsFactory", "OSGI"));
+            assertEquals(0, statistics.getResolutions("MissingStatisticsFactory", "OSGI"));
+        } finally {
+            OsgiLocator.unregister("StatisticsFactory", callable);
+        }
+    }
+
+    @Test
+    public void testNothingRecordedWhenDisabled() {
+        statistics.setEnabled(false);
+        assertNull(OsgiLocator.locate(Object.class, "MissingStatisticsFactory", 0));
+        assertEquals(0, statistics.getFactoryIds().length);
+    }
+
+    @Test
+    public void testLatencyBuckets() {
+        assertEquals(0, LocatorStatistics.bucket(500));
+        assertEquals(1, LocatorStatistics.bucket(1000));
+        assertEquals(11, LocatorStatistics.bucket(1024 * 1000));
+        assertEquals(LocatorStatistics.BUCKETS - 1, LocatorStatistics.bucket(Long.MAX_VALUE));
+    }
+
+}
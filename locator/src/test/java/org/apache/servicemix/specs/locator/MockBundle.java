@@ -0,0 +1,275 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Bundle backed by the test class path, with headers, service files and
+ * package wiring set up by the test.
+ */
+public class MockBundle implements InvocationHandler {
+
+    private final long id;
+    private final Bundle bundle;
+    private final Hashtable<String, String> headers = new Hashtable<String, String>();
+    private final Map<String, String> entries = new LinkedHashMap<String, String>();
+    private final List<BundleWire> wires = new ArrayList<BundleWire>();
+    private final List<MockBundle> fragments = new ArrayList<MockBundle>();
+    private ClassLoader loader = MockBundle.class.getClassLoader();
+    private long lastModified;
+    private int state = Bundle.RESOLVED;
+    private int scans;
+    private int reads;
+    private int loads;
+
+    public MockBundle(long id) {
+        this.id = id;
+        this.bundle = proxy(Bundle.class, this);
+    }
+
+    public Bundle getBundle() {
+        return bundle;
+    }
+
+    public MockBundle header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    public MockBundle service(String factoryId, String className) {
+        return entry("META-INF/services/" + factoryId, "# provider\n" + className + "\n");
+    }
+
+    public MockBundle entry(String path, String content) {
+        entries.put(path, content);
+        return this;
+    }
+
+    public MockBundle lastModified(long lastModified) {
+        this.lastModified = lastModified;
+        return this;
+    }
+
+    /**
+     * Load the classes of the bundle from the given class loader instead of
+     * the test one.
+     */
+    public MockBundle loader(ClassLoader loader) {
+        this.loader = loader;
+        return this;
+    }
+
+    public MockBundle state(int state) {
+        this.state = state;
+        return this;
+    }
+
+    /**
+     * Wire the given package to the class loader of another bundle.
+     */
+    public MockBundle wire(String pkg, long providerId, ClassLoader providerLoader) {
+        final Map<String, Object> attributes = Collections.<String, Object>singletonMap(BundleRevision.PACKAGE_NAMESPACE, pkg);
+        final BundleWiring provider = wiring(new MockBundle(providerId).getBundle(), providerLoader, null, null);
+        final BundleCapability capability = proxy(BundleCapability.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return "getAttributes".equals(method.getName()) ? attributes : defaultValue(proxy, method, args);
+            }
+        });
+        wires.add(proxy(BundleWire.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("getCapability".equals(method.getName())) {
+                    return capability;
+                } else if ("getProviderWiring".equals(method.getName())) {
+                    return provider;
+                }
+                return defaultValue(proxy, method, args);
+            }
+        }));
+        return this;
+    }
+
+    /**
+     * Attach the given fragment, whose entries are then found through this
+     * bundle.
+     */
+    public MockBundle fragment(MockBundle fragment) {
+        fragments.add(fragment);
+        return this;
+    }
+
+    /**
+     * @return how many times the service files of the bundle have been listed
+     */
+    public int getScans() {
+        return scans;
+    }
+
+    /**
+     * @return how many times entries of the bundle have been read
+     */
+    public int getReads() {
+        return reads;
+    }
+
+    /**
+     * @return how many classes have been loaded from the bundle
+     */
+    public synchronized int getLoads() {
+        return loads;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if ("getBundleId".equals(name)) {
+            return id;
+        } else if ("getState".equals(name)) {
+            return state;
+        } else if ("getLastModified".equals(name)) {
+            return lastModified;
+        } else if ("getSymbolicName".equals(name)) {
+            return "mock" + id;
+        } else if ("getHeaders".equals(name)) {
+            return headers;
+        } else if ("loadClass".equals(name)) {
+            synchronized (this) {
+                loads++;
+            }
+            return loader.loadClass((String) args[0]);
+        } else if ("findEntries".equals(name) && "META-INF/services/".equals(args[0])) {
+            scans++;
+            List<URL> urls = new ArrayList<URL>();
+            findServices(urls);
+            for (MockBundle fragment : fragments) {
+                fragment.findServices(urls);
+            }
+            return Collections.enumeration(urls);
+        } else if ("getEntry".equals(name)) {
+            return entries.containsKey(args[0]) ? url((String) args[0]) : null;
+        } else if ("adapt".equals(name) && args[0] == BundleWiring.class) {
+            return wiring(bundle, loader, wires, fragments);
+        } else if ("toString".equals(name)) {
+            return "MockBundle[" + id + "]";
+        }
+        return defaultValue(proxy, method, args);
+    }
+
+    private void findServices(List<URL> urls) throws IOException {
+        for (String path : entries.keySet()) {
+            if (path.startsWith("META-INF/services/")) {
+                urls.add(url(path));
+            }
+        }
+    }
+
+    private URL url(final String path) throws IOException {
+        return new URL("mock", String.valueOf(id), -1, "/" + path, new URLStreamHandler() {
+            protected URLConnection openConnection(URL u) {
+                return new URLConnection(u) {
+                    public void connect() {
+                    }
+
+                    public InputStream getInputStream() throws IOException {
+                        String content = entries.get(path);
+                        if (content == null) {
+                            throw new IOException("No such entry: " + path);
+                        }
+                        reads++;
+                        return new ByteArrayInputStream(content.getBytes("UTF-8"));
+                    }
+                };
+            }
+        });
+    }
+
+    private static BundleWiring wiring(final Bundle bundle, final ClassLoader loader, final List<BundleWire> wires,
+                                       final List<MockBundle> fragments) {
+        return proxy(BundleWiring.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("getBundle".equals(method.getName())) {
+                    return bundle;
+                } else if ("getClassLoader".equals(method.getName())) {
+                    return loader;
+                } else if ("getRequiredWires".equals(method.getName())) {
+                    return BundleRevision.PACKAGE_NAMESPACE.equals(args[0]) ? wires : null;
+                } else if ("getProvidedWires".equals(method.getName())) {
+                    return BundleRevision.HOST_NAMESPACE.equals(args[0]) ? hostWires(fragments) : null;
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+    }
+
+    private static List<BundleWire> hostWires(List<MockBundle> fragments) {
+        List<BundleWire> hostWires = new ArrayList<BundleWire>();
+        if (fragments != null) {
+            for (MockBundle fragment : fragments) {
+                final BundleWiring requirer = wiring(fragment.getBundle(), null, null, null);
+                hostWires.add(proxy(BundleWire.class, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return "getRequirerWiring".equals(method.getName()) ? requirer : defaultValue(proxy, method, args);
+                    }
+                }));
+            }
+        }
+        return hostWires;
+    }
+
+    static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(MockBundle.class.getClassLoader(), new Class[] { type }, handler));
+    }
+
+    static Object defaultValue(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        Class<?> type = method.getReturnType();
+        if ("equals".equals(name) && args != null && args.length == 1) {
+            return proxy == args[0];
+        } else if ("hashCode".equals(name) && (args == null || args.length == 0)) {
+            return System.identityHashCode(proxy);
+        } else if ("toString".equals(name) && (args == null || args.length == 0)) {
+            return method.getDeclaringClass().getSimpleName() + "@" + System.identityHashCode(proxy);
+        } else if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+}
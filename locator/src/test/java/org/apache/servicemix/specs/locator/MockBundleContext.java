@@ -0,0 +1,303 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Bundle context of a {@link MockBundle}, listing the bundles installed by
+ * the test and delivering the bundle events it fires.  Services registered
+ * through the context are kept in a registry shared with its
+ * {@link #sibling(MockBundle) siblings}, service filters only supporting
+ * plain <code>(key=value)</code> terms.
+ */
+public class MockBundleContext implements InvocationHandler {
+
+    private static final Pattern TERM = Pattern.compile("\\(([^=()&|!]+)=([^()]*)\\)");
+
+    private final MockBundle bundle;
+    private final File dataDir;
+    private final BundleContext context;
+    private final List<Bundle> bundles;
+    private final List<BundleListener> listeners = new CopyOnWriteArrayList<BundleListener>();
+    private final Services services;
+
+    public MockBundleContext(MockBundle bundle, File dataDir) {
+        this(bundle, dataDir, new CopyOnWriteArrayList<Bundle>(), new Services());
+    }
+
+    private MockBundleContext(MockBundle bundle, File dataDir, List<Bundle> bundles, Services services) {
+        this.bundle = bundle;
+        this.dataDir = dataDir;
+        this.context = MockBundle.proxy(BundleContext.class, this);
+        this.bundles = bundles;
+        this.services = services;
+        if (!bundles.contains(bundle.getBundle())) {
+            bundles.add(bundle.getBundle());
+        }
+    }
+
+    /**
+     * Context of another bundle of the same framework, sharing the installed
+     * bundles and the services of this one.
+     */
+    public MockBundleContext sibling(MockBundle other) {
+        return new MockBundleContext(other, dataDir, bundles, services);
+    }
+
+    /**
+     * @return the references of the registered services of the given class
+     */
+    public List<ServiceReference> getServices(String clazz) {
+        List<ServiceReference> refs = new ArrayList<ServiceReference>();
+        for (Registration reg : services.registrations) {
+            if (reg.matches(clazz, null)) {
+                refs.add(reg.reference);
+            }
+        }
+        return refs;
+    }
+
+    public BundleContext getBundleContext() {
+        return context;
+    }
+
+    public MockBundleContext install(MockBundle b) {
+        bundles.add(b.getBundle());
+        return this;
+    }
+
+    /**
+     * Deliver an event to the bundle listeners, removing the bundle from the
+     * installed ones when it is uninstalled.
+     */
+    public void fire(int type, MockBundle b) {
+        if (type == BundleEvent.UNINSTALLED) {
+            bundles.remove(b.getBundle());
+        }
+        for (BundleListener listener : listeners) {
+            listener.bundleChanged(new BundleEvent(type, b.getBundle()));
+        }
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if ("getBundle".equals(name) && (args == null || args.length == 0)) {
+            return bundle.getBundle();
+        } else if ("getBundle".equals(name)) {
+            for (Bundle b : bundles) {
+                if (b.getBundleId() == ((Long) args[0]).longValue()) {
+                    return b;
+                }
+            }
+            return null;
+        } else if ("getBundles".equals(name)) {
+            return bundles.toArray(new Bundle[bundles.size()]);
+        } else if ("addBundleListener".equals(name)) {
+            listeners.add((BundleListener) args[0]);
+            return null;
+        } else if ("removeBundleListener".equals(name)) {
+            listeners.remove(args[0]);
+            return null;
+        } else if ("getDataFile".equals(name)) {
+            return dataDir != null ? new File(dataDir, (String) args[0]) : null;
+        } else if ("getProperty".equals(name)) {
+            return System.getProperty((String) args[0]);
+        } else if ("registerService".equals(name)) {
+            String[] classes = args[0] instanceof String[] ? (String[]) args[0] : new String[] { (String) args[0] };
+            return services.register(bundle.getBundle(), classes, args[1], (Dictionary) args[2]).registration;
+        } else if ("getServiceReferences".equals(name) || "getServiceReference".equals(name)) {
+            List<ServiceReference> refs = new ArrayList<ServiceReference>();
+            for (Registration reg : services.registrations) {
+                if (reg.matches((String) args[0], args.length > 1 ? (String) args[1] : null)) {
+                    refs.add(reg.reference);
+                }
+            }
+            if ("getServiceReference".equals(name)) {
+                return refs.isEmpty() ? null : refs.get(0);
+            }
+            return refs.isEmpty() ? null : refs.toArray(new ServiceReference[refs.size()]);
+        } else if ("getService".equals(name)) {
+            for (Registration reg : services.registrations) {
+                if (reg.reference == args[0]) {
+                    return reg.service;
+                }
+            }
+            return null;
+        } else if ("ungetService".equals(name)) {
+            return Boolean.TRUE;
+        } else if ("addServiceListener".equals(name)) {
+            services.listeners.add(new Listener(this, (ServiceListener) args[0], args.length > 1 ? (String) args[1] : null));
+            return null;
+        } else if ("removeServiceListener".equals(name)) {
+            for (Listener l : services.listeners) {
+                if (l.context == this && l.listener == args[0]) {
+                    services.listeners.remove(l);
+                }
+            }
+            return null;
+        }
+        return MockBundle.defaultValue(proxy, method, args);
+    }
+
+    private static class Services {
+        final AtomicLong ids = new AtomicLong();
+        final List<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+        final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+        Registration register(Bundle bundle, String[] classes, Object service, Dictionary props) {
+            Registration reg = new Registration(this, bundle, classes, service, props);
+            registrations.add(reg);
+            fire(ServiceEvent.REGISTERED, reg);
+            return reg;
+        }
+
+        void fire(int type, Registration reg) {
+            for (Listener l : listeners) {
+                if (l.filter == null || reg.matches(null, l.filter)) {
+                    l.listener.serviceChanged(new ServiceEvent(type, reg.reference));
+                }
+            }
+        }
+    }
+
+    private static class Listener {
+        final MockBundleContext context;
+        final ServiceListener listener;
+        final String filter;
+
+        Listener(MockBundleContext context, ServiceListener listener, String filter) {
+            this.context = context;
+            this.listener = listener;
+            this.filter = filter;
+        }
+    }
+
+    private static class Registration implements InvocationHandler {
+        final Services services;
+        final Bundle bundle;
+        final Object service;
+        final ServiceRegistration registration;
+        final ServiceReference reference;
+        volatile Hashtable<String, Object> properties;
+
+        Registration(Services services, Bundle bundle, String[] classes, Object service, Dictionary props) {
+            this.services = services;
+            this.bundle = bundle;
+            this.service = service;
+            this.properties = new Hashtable<String, Object>();
+            properties.put(Constants.OBJECTCLASS, classes);
+            properties.put(Constants.SERVICE_ID, Long.valueOf(services.ids.incrementAndGet()));
+            setProperties(props);
+            this.registration = MockBundle.proxy(ServiceRegistration.class, this);
+            this.reference = MockBundle.proxy(ServiceReference.class, this);
+        }
+
+        void setProperties(Dictionary props) {
+            Hashtable<String, Object> p = new Hashtable<String, Object>();
+            p.put(Constants.OBJECTCLASS, properties.get(Constants.OBJECTCLASS));
+            p.put(Constants.SERVICE_ID, properties.get(Constants.SERVICE_ID));
+            if (props != null) {
+                for (Enumeration e = props.keys(); e.hasMoreElements();) {
+                    Object key = e.nextElement();
+                    if (!Constants.OBJECTCLASS.equals(key) && !Constants.SERVICE_ID.equals(key)) {
+                        p.put((String) key, props.get(key));
+                    }
+                }
+            }
+            properties = p;
+        }
+
+        boolean matches(String clazz, String filter) {
+            if (clazz != null && !contains((String[]) properties.get(Constants.OBJECTCLASS), clazz)) {
+                return false;
+            }
+            if (filter != null) {
+                Matcher m = TERM.matcher(filter);
+                while (m.find()) {
+                    String key = m.group(1).trim();
+                    String value = m.group(2).trim();
+                    Object actual = properties.get(key);
+                    if (actual instanceof String[] ? !contains((String[]) actual, value)
+                            : actual == null || !value.equals(String.valueOf(actual))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private static boolean contains(String[] values, String value) {
+            for (String v : values) {
+                if (v.equals(value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if ("getReference".equals(name)) {
+                return reference;
+            } else if ("getProperty".equals(name)) {
+                return properties.get(args[0]);
+            } else if ("getBundle".equals(name)) {
+                return bundle;
+            } else if ("setProperties".equals(name)) {
+                checkRegistered();
+                setProperties((Dictionary) args[0]);
+                services.fire(ServiceEvent.MODIFIED, this);
+                return null;
+            } else if ("unregister".equals(name)) {
+                checkRegistered();
+                services.fire(ServiceEvent.UNREGISTERING, this);
+                services.registrations.remove(this);
+                return null;
+            }
+            return MockBundle.defaultValue(proxy, method, args);
+        }
+
+        private void checkRegistered() {
+            if (!services.registrations.contains(this)) {
+                throw new IllegalStateException("Service already unregistered");
+            }
+        }
+    }
+
+}
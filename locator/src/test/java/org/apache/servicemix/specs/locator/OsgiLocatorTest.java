@@ -16,6 +16,20 @@
  */
 package org.apache.servicemix.specs.locator;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -32,11 +46,13 @@ public class OsgiLocatorTest extends Assert {
     public void testLocatorWithSystemProperty() {
         System.setProperty(OsgiLocator.TIMEOUT, "0");
         System.setProperty("Factory", "org.apache.servicemix.specs.locator.MockCallable");
+        OsgiLocator.refreshConfiguration();
         Class clazz = OsgiLocator.locate(Object.class, "Factory");
         assertNotNull("Expected to find a class", clazz);
         assertEquals("Got the wrong class", MockCallable.class.getName(), clazz.getName());
 
         System.setProperty("Factory", "org.apache.servicemix.specs.locator");
+        OsgiLocator.refreshConfiguration();
         clazz = OsgiLocator.locate(Object.class, "Factory");
         assertNull("Did not expect to find a class", clazz);
     }
@@ -45,6 +61,7 @@ public class OsgiLocatorTest extends Assert {
     public void testLocatorWithoutSystemProperty() {
         System.setProperty(OsgiLocator.TIMEOUT, "0");
         System.clearProperty("Factory");
+        OsgiLocator.refreshConfiguration();
         Class clazz = OsgiLocator.locate(Object.class, "Factory");
         assertNotNull("Expected to find a class", clazz);
         assertEquals("Got the wrong class", MockCallable2.class.getName(), clazz.getName());
@@ -55,11 +72,13 @@ public class OsgiLocatorTest extends Assert {
         long timeout = 1000;
         System.setProperty(OsgiLocator.TIMEOUT, Long.toString(timeout));
         System.setProperty("Factory", "org.apache.servicemix.specs.locator.MockCallable");
+        OsgiLocator.refreshConfiguration();
         Class clazz = OsgiLocator.locate(Object.class, "Factory");
         assertNotNull("Expected to find a class", clazz);
         assertEquals("Got the wrong class.", MockCallable.class.getName(), clazz.getName());
 
         System.setProperty("Factory", "org.apache.servicemix.specs.locator");
+        OsgiLocator.refreshConfiguration();
         long t0 = System.currentTimeMillis();
         clazz = OsgiLocator.locate(Object.class, "Factory");
         long t1 = System.currentTimeMillis();
@@ -72,6 +91,7 @@ public class OsgiLocatorTest extends Assert {
         long timeout = 1000;
         System.setProperty(OsgiLocator.TIMEOUT, Long.toString(timeout));
         System.clearProperty("Factory");
+        OsgiLocator.refreshConfiguration();
         long t0 = System.currentTimeMillis();
         Class clazz = OsgiLocator.locate(Object.class, "Factory");
         long t1 = System.currentTimeMillis();
@@ -80,4 +100,572 @@ public class OsgiLocatorTest extends Assert {
         assertTrue("Timeout issue", (t1 - t0) < timeout / 2);
     }
 
+    @Test
+    public void testLocatorCacheInvalidatedOnRegistration() {
+        System.setProperty(OsgiLocator.TIMEOUT, "0");
+        System.clearProperty("CachedFactory");
+        OsgiLocator.refreshConfiguration();
+        Callable<Class> first = new MockCallable();
+        OsgiLocator.register("CachedFactory", first);
+        Class clazz = OsgiLocator.locate(Object.class, "CachedFactory");
+        assertEquals("Got the wrong class", MockCallable.class, clazz);
+        assertSame("Expected the cached class", clazz, OsgiLocator.locate(Object.class, "CachedFactory"));
+
+        Callable<Class> second = new MockCallable2();
+        OsgiLocator.register("CachedFactory", second);
+        clazz = OsgiLocator.locate(Object.class, "CachedFactory");
+        assertEquals("Got the wrong class after registration", MockCallable2.class, clazz);
+
+        OsgiLocator.unregister("CachedFactory", second);
+        clazz = OsgiLocator.locate(Object.class, "CachedFactory");
+        assertEquals("Got the wrong class after unregistration", MockCallable.class, clazz);
+
+        OsgiLocator.unregister("CachedFactory", first);
+        assertNull("Did not expect to find a class", OsgiLocator.locate(Object.class, "CachedFactory"));
+    }
+
+    @Test
+    public void testLocateAsync() throws Exception {
+        System.clearProperty("AsyncFactory");
+        OsgiLocator.refreshConfiguration();
+        Future<Class<? extends Object>> future = OsgiLocator.locateAsync(Object.class, "AsyncFactory");
+        assertFalse("Did not expect the lookup to be complete", future.isDone());
+
+        OsgiLocator.register("OtherFactory", new MockCallable());
+        assertFalse("Did not expect the lookup to be complete", future.isDone());
+
+        Callable<Class> callable = new MockCallable2();
+        OsgiLocator.register("AsyncFactory", callable);
+        assertTrue("Expected the lookup to be complete", future.isDone());
+        assertEquals("Got the wrong class", MockCallable2.class, future.get(0, TimeUnit.MILLISECONDS));
+
+        future = OsgiLocator.locateAsync(Object.class, "AsyncFactory");
+        assertTrue("Expected the lookup to be complete", future.isDone());
+        OsgiLocator.unregister("AsyncFactory", callable);
+    }
+
+    @Test
+    public void testLocateInstance() throws Exception {
+        System.clearProperty("InstanceFactory");
+        OsgiLocator.refreshConfiguration();
+        Callable<Class> callable = new MockCallable();
+        OsgiLocator.register("InstanceFactory", callable);
+
+        Object o1 = OsgiLocator.locateInstance(Object.class, "InstanceFactory");
+        Object o2 = OsgiLocator.locateInstance(Object.class, "InstanceFactory");
+        assertTrue("Got the wrong instance", o1 instanceof MockCallable);
+        assertNotSame("Expected a new instance", o1, o2);
+
+        OsgiLocator.setInstanceStrategy("InstanceFactory", InstanceStrategy.SINGLETON);
+        o1 = OsgiLocator.locateInstance(Object.class, "InstanceFactory");
+        assertSame("Expected a shared instance", o1, OsgiLocator.locateInstance(Object.class, "InstanceFactory"));
+
+        OsgiLocator.setInstanceStrategy("InstanceFactory", InstanceStrategy.THREAD_LOCAL);
+        o1 = OsgiLocator.locateInstance(Object.class, "InstanceFactory");
+        assertSame("Expected the instance of this thread", o1, OsgiLocator.locateInstance(Object.class, "InstanceFactory"));
+        final Object[] other = new Object[1];
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    other[0] = OsgiLocator.locateInstance(Object.class, "InstanceFactory");
+                } catch (Exception e) {
+                    // checked below
+                }
+            }
+        };
+        t.start();
+        t.join();
+        assertNotNull(other[0]);
+        assertNotSame("Expected an instance per thread", o1, other[0]);
+
+        OsgiLocator.setInstanceStrategy("InstanceFactory", InstanceStrategy.POOLED, 1);
+        o1 = OsgiLocator.locateInstance(Object.class, "InstanceFactory");
+        o2 = OsgiLocator.locateInstance(Object.class, "InstanceFactory");
+        assertNotSame("Expected distinct pooled instances", o1, o2);
+        OsgiLocator.releaseInstance(Object.class, "InstanceFactory", o1);
+        OsgiLocator.releaseInstance(Object.class, "InstanceFactory", o2);
+        assertSame("Expected the pooled instance", o1, OsgiLocator.locateInstance(Object.class, "InstanceFactory"));
+
+        OsgiLocator.setInstanceStrategy("InstanceFactory", InstanceStrategy.NEW);
+        assertNotSame("Expected a new instance", o1, OsgiLocator.locateInstance(Object.class, "InstanceFactory"));
+
+        OsgiLocator.unregister("InstanceFactory", callable);
+        assertNull("Did not expect an instance", OsgiLocator.locateInstance(Object.class, "InstanceFactory"));
+    }
+
+    @Test
+    public void testInstancesDroppedOnUnregister() throws Exception {
+        System.clearProperty("InstanceFactory");
+        OsgiLocator.refreshConfiguration();
+        Callable<Class> callable = new MockCallable();
+        try {
+            for (InstanceStrategy strategy : new InstanceStrategy[] { InstanceStrategy.THREAD_LOCAL, InstanceStrategy.POOLED }) {
+                OsgiLocator.setInstanceStrategy("InstanceFactory", strategy);
+                OsgiLocator.register("InstanceFactory", callable);
+                Object instance = OsgiLocator.locateInstance(Object.class, "InstanceFactory");
+                OsgiLocator.releaseInstance(Object.class, "InstanceFactory", instance);
+                WeakReference<Object> ref = new WeakReference<Object>(instance);
+                instance = null;
+                OsgiLocator.unregister("InstanceFactory", callable);
+                for (int i = 0; i < 50 && ref.get() != null; i++) {
+                    System.gc();
+                    Thread.sleep(10);
+                }
+                assertNull("Expected the " + strategy + " instance to be dropped", ref.get());
+            }
+        } finally {
+            OsgiLocator.setInstanceStrategy("InstanceFactory", InstanceStrategy.NEW);
+            OsgiLocator.unregister("InstanceFactory", callable);
+        }
+    }
+
+    @Test
+    public void testLocatorWithRanking() {
+        System.setProperty(OsgiLocator.TIMEOUT, "0");
+        System.clearProperty("RankedFactory");
+        OsgiLocator.refreshConfiguration();
+        Callable<Class> high = new RankedCallable(MockCallable.class, 10);
+        Callable<Class> low = new RankedCallable(MockCallable.class, -1);
+        Callable<Class> plain = new MockCallable2();
+        OsgiLocator.register("RankedFactory", high);
+        OsgiLocator.register("RankedFactory", low);
+        OsgiLocator.register("RankedFactory", plain);
+        assertEquals("Expected the highest ranking", MockCallable.class, OsgiLocator.locate(Object.class, "RankedFactory"));
+        assertEquals(3, OsgiLocator.locateAll(Object.class, "RankedFactory").size());
+
+        OsgiLocator.unregister("RankedFactory", high);
+        assertEquals("Expected the default ranking", MockCallable2.class, OsgiLocator.locate(Object.class, "RankedFactory"));
+        OsgiLocator.unregister("RankedFactory", low);
+        OsgiLocator.unregister("RankedFactory", plain);
+        assertNull(OsgiLocator.locate(Object.class, "RankedFactory"));
+    }
+
+    @Test
+    public void testLocateWithClassLoader() {
+        System.setProperty(OsgiLocator.TIMEOUT, "0");
+        OsgiLocator.refreshConfiguration();
+        String factoryId = Runnable.class.getName();
+        System.clearProperty(factoryId);
+        OsgiLocator.refreshConfiguration();
+        ClassLoader loader = getClass().getClassLoader();
+        assertNull(OsgiLocator.locate(factoryId, loader));
+        assertNull("Expected the miss to be remembered", OsgiLocator.locate(factoryId, loader));
+        assertNull("Unknown factory class", OsgiLocator.locate("org.apache.servicemix.specs.locator.Unknown", loader));
+
+        Callable<Class> callable = new MockCallable();
+        OsgiLocator.register(factoryId, callable);
+        try {
+            assertEquals("Expected the registration to clear the miss", MockCallable.class, OsgiLocator.locate(factoryId, loader));
+        } finally {
+            OsgiLocator.unregister(factoryId, callable);
+        }
+        assertNull(OsgiLocator.locate(factoryId, loader));
+    }
+
+    @Test
+    public void testRegisterAll() throws Exception {
+        System.setProperty(OsgiLocator.TIMEOUT, "0");
+        System.clearProperty("BatchFactory1");
+        System.clearProperty("BatchFactory2");
+        OsgiLocator.refreshConfiguration();
+        Future<Class<? extends Object>> future = OsgiLocator.locateAsync(Object.class, "BatchFactory2");
+
+        Map<String, List<Callable<Class>>> batch = new HashMap<String, List<Callable<Class>>>();
+        batch.put("BatchFactory1", Arrays.<Callable<Class>>asList(new MockCallable(), new MockCallable2()));
+        batch.put("BatchFactory2", Collections.<Callable<Class>>singletonList(new MockCallable()));
+        OsgiLocator.registerAll(batch);
+
+        assertEquals(MockCallable2.class, OsgiLocator.locate(Object.class, "BatchFactory1"));
+        assertEquals(2, OsgiLocator.locateAll(Object.class, "BatchFactory1").size());
+        assertEquals("Expected the waiter to be woken up", MockCallable.class, future.get(1, TimeUnit.SECONDS));
+
+        OsgiLocator.unregisterAll(batch);
+        assertNull(OsgiLocator.locate(Object.class, "BatchFactory1"));
+        assertNull(OsgiLocator.locate(Object.class, "BatchFactory2"));
+    }
+
+    @Test
+    public void testLocateAllIsCached() {
+        System.clearProperty("AllFactory");
+        OsgiLocator.refreshConfiguration();
+        Callable<Class> first = new MockCallable();
+        OsgiLocator.register("AllFactory", first);
+        List<Class<? extends Object>> classes = OsgiLocator.locateAll(Object.class, "AllFactory");
+        assertEquals(Collections.<Class<?>>singletonList(MockCallable.class), classes);
+        assertSame("Expected the cached list", classes, OsgiLocator.locateAll(Object.class, "AllFactory"));
+        assertEquals(0, OsgiLocator.locateAll(Runnable.class, "AllFactory").size());
+
+        Callable<Class> second = new MockCallable2();
+        OsgiLocator.register("AllFactory", second);
+        assertEquals(Arrays.<Class<?>>asList(MockCallable2.class, MockCallable.class),
+                     OsgiLocator.locateAll(Object.class, "AllFactory"));
+        OsgiLocator.unregister("AllFactory", second);
+        OsgiLocator.unregister("AllFactory", first);
+        assertTrue(OsgiLocator.locateAll(Object.class, "AllFactory").isEmpty());
+    }
+
+    @Test
+    public void testActive() {
+        assertFalse("Expected no activator outside of OSGi", OsgiLocator.isActive());
+        OsgiLocator.setActive(true);
+        try {
+            assertTrue(OsgiLocator.isActive());
+        } finally {
+            OsgiLocator.setActive(false);
+        }
+        assertFalse(OsgiLocator.isActive());
+    }
+
+    @Test
+    public void testConfigurationSnapshot() {
+        System.setProperty(OsgiLocator.TIMEOUT, "0");
+        System.clearProperty("Factory");
+        OsgiLocator.refreshConfiguration();
+        assertEquals(0, LocatorConfiguration.get().getTimeout());
+        assertEquals(MockCallable2.class, OsgiLocator.locate(Object.class, "Factory"));
+
+        System.setProperty(OsgiLocator.TIMEOUT, "100");
+        System.setProperty("Factory", "org.apache.servicemix.specs.locator.MockCallable");
+        try {
+            assertEquals("Expected the previous snapshot", 0, LocatorConfiguration.get().getTimeout());
+            assertEquals("Expected the previous snapshot", MockCallable2.class, OsgiLocator.locate(Object.class, "Factory"));
+            OsgiLocator.refreshConfiguration();
+            assertEquals(100, LocatorConfiguration.get().getTimeout());
+            assertEquals(MockCallable.class, OsgiLocator.locate(Object.class, "Factory"));
+        } finally {
+            System.setProperty(OsgiLocator.TIMEOUT, "0");
+            System.clearProperty("Factory");
+            OsgiLocator.refreshConfiguration();
+        }
+    }
+
+    @Test
+    public void testManagedConfiguration() {
+        System.setProperty(OsgiLocator.TIMEOUT, "0");
+        System.clearProperty("Factory");
+        Hashtable<String, Object> configuration = new Hashtable<String, Object>();
+        configuration.put(OsgiLocator.TIMEOUT, Long.valueOf(50));
+        configuration.put("Factory", "org.apache.servicemix.specs.locator.MockCallable");
+        configuration.put("service.pid", LocatorConfiguration.PID);
+        OsgiLocator.updateConfiguration(configuration);
+        try {
+            assertEquals("Expected Configuration Admin to take precedence", 50, LocatorConfiguration.get().getTimeout());
+            assertNull("Overrides are not settings", LocatorConfiguration.get().getProperty("Factory"));
+            assertNull("Did not expect the pid as an override", LocatorConfiguration.get().getOverride("service.pid"));
+            assertEquals("Expected the managed override", MockCallable.class, OsgiLocator.locate(Object.class, "Factory"));
+            OsgiLocator.refreshConfiguration();
+            assertEquals(50, LocatorConfiguration.get().getTimeout());
+        } finally {
+            OsgiLocator.updateConfiguration(null);
+        }
+        assertEquals(0, LocatorConfiguration.get().getTimeout());
+        assertEquals(MockCallable2.class, OsgiLocator.locate(Object.class, "Factory"));
+    }
+
+    @Test
+    public void testConfiguredInstanceStrategy() throws Exception {
+        System.clearProperty("ConfiguredFactory");
+        OsgiLocator.refreshConfiguration();
+        Callable<Class> callable = new MockCallable();
+        OsgiLocator.register("ConfiguredFactory", callable);
+        try {
+            Object o = OsgiLocator.locateInstance(Object.class, "ConfiguredFactory");
+            assertNotSame("Expected a new instance", o, OsgiLocator.locateInstance(Object.class, "ConfiguredFactory"));
+
+            Hashtable<String, Object> configuration = new Hashtable<String, Object>();
+            configuration.put(OsgiLocator.INSTANCE_STRATEGY + "ConfiguredFactory", "singleton");
+            OsgiLocator.updateConfiguration(configuration);
+            o = OsgiLocator.locateInstance(Object.class, "ConfiguredFactory");
+            assertSame("Expected the updated strategy", o, OsgiLocator.locateInstance(Object.class, "ConfiguredFactory"));
+
+            OsgiLocator.register("ExplicitFactory", callable);
+            OsgiLocator.setInstanceStrategy("ExplicitFactory", InstanceStrategy.SINGLETON);
+            Object explicit = OsgiLocator.locateInstance(Object.class, "ExplicitFactory");
+            OsgiLocator.updateConfiguration(null);
+            assertNotSame("Expected the default strategy again", o, OsgiLocator.locateInstance(Object.class, "ConfiguredFactory"));
+            assertSame("Expected the explicit strategy to be kept", explicit,
+                       OsgiLocator.locateInstance(Object.class, "ExplicitFactory"));
+        } finally {
+            OsgiLocator.updateConfiguration(null);
+            OsgiLocator.setInstanceStrategy("ExplicitFactory", InstanceStrategy.NEW);
+            OsgiLocator.unregister("ExplicitFactory", callable);
+            OsgiLocator.unregister("ConfiguredFactory", callable);
+        }
+    }
+
+    @Test
+    public void testResolvedLookupsDoNotWaitForPendingUpdates() {
+        System.setProperty(OsgiLocator.TIMEOUT, "0");
+        System.clearProperty("Factory");
+        OsgiLocator.refreshConfiguration();
+        CountDownLatch barrier = OsgiLocator.addBarrier();
+        try {
+            long t0 = System.currentTimeMillis();
+            assertEquals(MockCallable2.class, OsgiLocator.locate(Object.class, "Factory"));
+            assertEquals(2, OsgiLocator.locateAll(Object.class, "Factory").size());
+            assertTrue("Did not expect to wait", System.currentTimeMillis() - t0 < OsgiLocator.BARRIER_TIMEOUT / 2);
+        } finally {
+            OsgiLocator.releaseBarrier(barrier);
+        }
+    }
+
+    @Test
+    public void testLocateWaitsForPendingUpdates() throws Exception {
+        System.setProperty(OsgiLocator.TIMEOUT, "0");
+        System.clearProperty("PendingFactory");
+        OsgiLocator.refreshConfiguration();
+        final Callable<Class> callable = new MockCallable();
+        final CountDownLatch barrier = OsgiLocator.addBarrier();
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                OsgiLocator.register("PendingFactory", callable);
+                OsgiLocator.releaseBarrier(barrier);
+            }
+        };
+        t.start();
+        try {
+            assertEquals("Expected the pending registration to be seen", MockCallable.class,
+                         OsgiLocator.locate(Object.class, "PendingFactory"));
+        } finally {
+            t.join();
+            OsgiLocator.unregister("PendingFactory", callable);
+        }
+    }
+
+    @Test
+    public void testMissesOnlyWaitForTheirFactoryIds() throws Exception {
+        System.setProperty(OsgiLocator.TIMEOUT, "0");
+        System.clearProperty("UnrelatedFactory");
+        OsgiLocator.refreshConfiguration();
+        ClassLoader loader = getClass().getClassLoader();
+        assertNull(OsgiLocator.locate("java.lang.Runnable", loader));
+        CountDownLatch barrier = OsgiLocator.addBarrier(Collections.singleton("PendingFactory"));
+        try {
+            long t0 = System.currentTimeMillis();
+            assertNull(OsgiLocator.locate(Object.class, "UnrelatedFactory"));
+            assertNull(OsgiLocator.locate("java.lang.Runnable", loader));
+            assertNull("Expected the miss to be cached", OsgiLocator.locate("java.lang.Runnable", loader));
+            assertTrue("Did not expect to wait", System.currentTimeMillis() - t0 < OsgiLocator.BARRIER_TIMEOUT / 2);
+        } finally {
+            OsgiLocator.releaseBarrier(barrier);
+        }
+    }
+
+    @Test
+    public void testSharedRegistry() throws Exception {
+        System.setProperty(OsgiLocator.TIMEOUT, "0");
+        System.clearProperty("SharedFactory");
+        OsgiLocator.refreshConfiguration();
+        Callable<Class> callable = new MockCallable();
+        OsgiLocator.register("SharedFactory", callable);
+        Map<String, List<Callable<Class>>> view = OsgiLocator.getRegistryView();
+        assertEquals(Collections.singletonList(callable), view.get("SharedFactory"));
+
+        Map<String, List<Callable<Class>>> registry = new HashMap<String, List<Callable<Class>>>();
+        OsgiLocator.useSharedRegistry(registry);
+        try {
+            assertNull("Expected the local factories to be ignored", OsgiLocator.locate(Object.class, "SharedFactory"));
+            Future<Class<? extends Object>> future = OsgiLocator.locateAsync(Object.class, "SharedFactory");
+            registry.put("SharedFactory", Collections.<Callable<Class>>singletonList(new MockCallable2()));
+            assertFalse("Did not expect the lookup to be complete", future.isDone());
+
+            OsgiLocator.sharedRegistryChanged();
+            assertEquals("Expected the waiter to be woken up", MockCallable2.class, future.get(1, TimeUnit.SECONDS));
+            assertEquals(MockCallable2.class, OsgiLocator.locate(Object.class, "SharedFactory"));
+        } finally {
+            OsgiLocator.useSharedRegistry(null);
+        }
+        assertEquals(MockCallable.class, OsgiLocator.locate(Object.class, "SharedFactory"));
+        OsgiLocator.unregister("SharedFactory", callable);
+        assertNull(view.get("SharedFactory"));
+    }
+
+    @Test
+    public void testLocatorWithClassSpace() {
+        System.setProperty(OsgiLocator.TIMEOUT, "0");
+        System.clearProperty("WiredFactory");
+        OsgiLocator.refreshConfiguration();
+        WiredCallable incompatible = new WiredCallable(MockCallable.class, Boolean.FALSE);
+        WiredCallable unknown = new WiredCallable(MockCallable2.class, null);
+        OsgiLocator.register("WiredFactory", unknown);
+        OsgiLocator.register("WiredFactory", incompatible);
+        try {
+            assertEquals("Expected the incompatible provider to be skipped", MockCallable2.class,
+                         OsgiLocator.locate(Object.class, "WiredFactory"));
+            assertEquals("Did not expect the incompatible provider to be loaded", 0, incompatible.calls);
+            assertEquals(1, unknown.calls);
+        } finally {
+            OsgiLocator.unregister("WiredFactory", incompatible);
+            OsgiLocator.unregister("WiredFactory", unknown);
+        }
+    }
+
+    @Test
+    public void testLocatorWithBootDelegatedFactory() {
+        System.setProperty(OsgiLocator.TIMEOUT, "0");
+        System.clearProperty("java.lang.Runnable");
+        OsgiLocator.refreshConfiguration();
+        // java.lang is wired to the system bundle, whose loader is not the one
+        // that defined Runnable, yet the provider bundle sees the same class
+        ClassLoader system = new ClassLoader(null) { };
+        MockBundle provider = new MockBundle(42)
+                .header(Activator.PROVIDERS_HEADER, "java.lang.Runnable=" + BootRunnable.class.getName())
+                .wire("java.lang", 0, system);
+        Activator activator = new Activator();
+        activator.register(provider.getBundle());
+        try {
+            assertEquals(BootRunnable.class, OsgiLocator.locate(Runnable.class, "java.lang.Runnable"));
+        } finally {
+            activator.unregister(42);
+        }
+    }
+
+    @Test
+    public void testLocatorWithRegion() {
+        System.setProperty(OsgiLocator.TIMEOUT, "0");
+        System.clearProperty("RegionFactory");
+        OsgiLocator.refreshConfiguration();
+        Callable<Class> regional = new RegionalCallable(MockCallable.class, "a");
+        Callable<Class> global = new MockCallable2();
+        OsgiLocator.register("RegionFactory", regional);
+        OsgiLocator.register("RegionFactory", global);
+        try {
+            assertEquals(MockCallable.class, OsgiLocator.locate(Object.class, "RegionFactory", "a"));
+            assertEquals("Expected the global provider", MockCallable2.class, OsgiLocator.locate(Object.class, "RegionFactory", "b"));
+            assertEquals("Expected the global provider", MockCallable2.class, OsgiLocator.locate(Object.class, "RegionFactory"));
+            assertEquals(1, OsgiLocator.locateAll(Object.class, "RegionFactory").size());
+
+            OsgiLocator.setRegion("a");
+            assertEquals("Expected the provider of the default region", MockCallable.class, OsgiLocator.locate(Object.class, "RegionFactory"));
+            assertEquals(2, OsgiLocator.locateAll(Object.class, "RegionFactory").size());
+        } finally {
+            OsgiLocator.setRegion(null);
+            OsgiLocator.unregister("RegionFactory", regional);
+            OsgiLocator.unregister("RegionFactory", global);
+        }
+        assertNull(OsgiLocator.locate(Object.class, "RegionFactory", "a"));
+    }
+
+    @Test
+    public void testCallerRegionOnlyLookedForWithRegionalProviders() {
+        System.setProperty(OsgiLocator.TIMEOUT, "0");
+        System.clearProperty("CallerFactory");
+        OsgiLocator.refreshConfiguration();
+        final AtomicInteger calls = new AtomicInteger();
+        OsgiLocator.setCallerRegion(new Regional() {
+            public String getRegion() {
+                calls.incrementAndGet();
+                return "a";
+            }
+        });
+        Callable<Class> global = new MockCallable2();
+        Callable<Class> regional = new RegionalCallable(MockCallable.class, "a");
+        OsgiLocator.register("CallerFactory", global);
+        try {
+            assertEquals(MockCallable2.class, OsgiLocator.locate(Object.class, "CallerFactory"));
+            assertEquals("Did not expect the caller region to be looked for", 0, calls.get());
+
+            OsgiLocator.register("CallerFactory", regional);
+            assertEquals("Expected the provider of the caller region", MockCallable.class, OsgiLocator.locate(Object.class, "CallerFactory"));
+            assertEquals(1, calls.get());
+        } finally {
+            OsgiLocator.setCallerRegion(null);
+            OsgiLocator.unregister("CallerFactory", regional);
+            OsgiLocator.unregister("CallerFactory", global);
+        }
+    }
+
+    @Test
+    public void testProviderListener() {
+        final List<String> notified = new ArrayList<String>();
+        ProviderListener listener = new ProviderListener() {
+            public void providersChanged(String factoryId) {
+                notified.add(factoryId);
+            }
+        };
+        OsgiLocator.addProviderListener("ListenedFactory", listener);
+        try {
+            Map<String, List<Callable<Class>>> batch = new HashMap<String, List<Callable<Class>>>();
+            batch.put("ListenedFactory", Arrays.<Callable<Class>>asList(new MockCallable(), new RegionalCallable(MockCallable2.class, "a")));
+            batch.put("OtherListenedFactory", Collections.<Callable<Class>>singletonList(new MockCallable()));
+            OsgiLocator.registerAll(batch);
+            assertEquals("Expected a single notification", Collections.singletonList("ListenedFactory"), notified);
+
+            OsgiLocator.unregisterAll(batch);
+            assertEquals(Arrays.asList("ListenedFactory", "ListenedFactory"), notified);
+        } finally {
+            OsgiLocator.removeProviderListener("ListenedFactory", listener);
+        }
+        Callable<Class> callable = new MockCallable();
+        OsgiLocator.register("ListenedFactory", callable);
+        OsgiLocator.unregister("ListenedFactory", callable);
+        assertEquals("Did not expect a notification once removed", 2, notified.size());
+    }
+
+    private static class RegionalCallable implements Callable<Class>, Regional {
+        private final Class clazz;
+        private final String region;
+
+        RegionalCallable(Class clazz, String region) {
+            this.clazz = clazz;
+            this.region = region;
+        }
+
+        public Class call() throws Exception {
+            return clazz;
+        }
+
+        public String getRegion() {
+            return region;
+        }
+    }
+
+    public static class BootRunnable implements Runnable {
+        public void run() {
+        }
+    }
+
+    private static class WiredCallable implements Callable<Class>, ClassSpace {
+        private final Class clazz;
+        private final Boolean compatible;
+        private int calls;
+
+        WiredCallable(Class clazz, Boolean compatible) {
+            this.clazz = clazz;
+            this.compatible = compatible;
+        }
+
+        public Class call() throws Exception {
+            calls++;
+            return clazz;
+        }
+
+        public Boolean isCompatible(Class<?> factoryClass) {
+            return compatible;
+        }
+    }
+
+    private static class RankedCallable implements Callable<Class>, Ranked {
+        private final Class clazz;
+        private final int ranking;
+
+        RankedCallable(Class clazz, int ranking) {
+            this.clazz = clazz;
+            this.ranking = ranking;
+        }
+
+        public Class call() throws Exception {
+            return clazz;
+        }
+
+        public int getRanking() {
+            return ranking;
+        }
+    }
+
 }
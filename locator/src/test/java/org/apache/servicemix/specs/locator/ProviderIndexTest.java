@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProviderIndexTest extends Assert {
+
+    private static final String FACTORY_ID = "org.apache.servicemix.specs.locator.IndexedFactory";
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        ProviderIndex index = new ProviderIndex();
+        index.add("javax.xml.stream.XMLInputFactory", "com.ctc.wstx.stax.WstxInputFactory");
+        index.add("javax.xml.stream.XMLInputFactory", "org.acme.OtherInputFactory");
+        index.add("javax.xml.stream.XMLInputFactory", "com.ctc.wstx.stax.WstxInputFactory");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        index.write(baos);
+
+        index = new ProviderIndex();
+        index.read(new ByteArrayInputStream(baos.toByteArray()));
+        assertEquals("com.ctc.wstx.stax.WstxInputFactory", index.getProvider("javax.xml.stream.XMLInputFactory"));
+        assertEquals(Arrays.asList("com.ctc.wstx.stax.WstxInputFactory", "org.acme.OtherInputFactory"),
+                     index.getProviders("javax.xml.stream.XMLInputFactory"));
+        assertNull(index.getProvider("javax.xml.stream.XMLOutputFactory"));
+    }
+
+    @Test
+    public void testResolverUsesIndex() throws Exception {
+        File dir = createDir();
+        writeIndex(dir, "org.acme.IndexedProvider");
+
+        ClassLoader loader = new URLClassLoader(new URL[] { dir.toURI().toURL() }, null);
+        ProviderResolver resolver = new ProviderResolver(ProviderResolver.SERVICES);
+        ProviderResolver.Provider provider = resolver.resolve(FACTORY_ID, loader);
+        assertNotNull("Expected the indexed provider", provider);
+        assertEquals("org.acme.IndexedProvider", provider.getClassName());
+        assertEquals(ResolutionSource.SERVICES, provider.getSource());
+        assertSame(loader, provider.getClassLoader());
+    }
+
+    @Test
+    public void testParentIndexIsNotUsed() throws Exception {
+        File parentDir = createDir();
+        writeIndex(parentDir, "org.acme.ParentProvider");
+        File childDir = createDir();
+        write(new File(childDir, "META-INF/services/" + FACTORY_ID), "org.acme.ChildProvider\n");
+
+        ClassLoader parent = new URLClassLoader(new URL[] { parentDir.toURI().toURL() }, null);
+        ClassLoader child = new URLClassLoader(new URL[] { childDir.toURI().toURL() }, parent);
+        assertTrue(ProviderIndex.get(child).isEmpty());
+        ProviderResolver.Provider provider = new ProviderResolver(ProviderResolver.SERVICES).resolve(FACTORY_ID, child);
+        assertEquals("Expected the service file of the child", "org.acme.ChildProvider", provider.getClassName());
+    }
+
+    @Test
+    public void testParentServiceFileComesFirst() throws Exception {
+        File parentDir = createDir();
+        write(new File(parentDir, "META-INF/services/" + FACTORY_ID), "org.acme.ParentProvider\n");
+        File childDir = createDir();
+        writeIndex(childDir, "org.acme.IndexedProvider");
+
+        ClassLoader parent = new URLClassLoader(new URL[] { parentDir.toURI().toURL() }, null);
+        ClassLoader child = new URLClassLoader(new URL[] { childDir.toURI().toURL() }, parent);
+        ProviderResolver.Provider provider = new ProviderResolver(ProviderResolver.SERVICES).resolve(FACTORY_ID, child);
+        assertEquals("Expected the parent to be delegated to first", "org.acme.ParentProvider", provider.getClassName());
+    }
+
+    private static File createDir() throws IOException {
+        File dir = File.createTempFile("index", "");
+        dir.delete();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    private static void writeIndex(File dir, String className) throws IOException {
+        ProviderIndex index = new ProviderIndex();
+        index.add(FACTORY_ID, className);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        index.write(baos);
+        write(new File(dir, ProviderIndex.RESOURCE), baos.toString("UTF-8"));
+    }
+
+    private static void write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        file.deleteOnExit();
+        file.getParentFile().deleteOnExit();
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(content.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProviderResolverTest extends Assert {
+
+    private static final String FACTORY_ID = "org.apache.servicemix.specs.locator.ResolverFactory";
+
+    @Test
+    public void testSystemPropertyAndServices() {
+        ProviderResolver resolver = new ProviderResolver(ProviderResolver.SYSTEM_PROPERTY, ProviderResolver.SERVICES);
+        ClassLoader loader = new ServicesClassLoader("# comment\n  org.acme.ServiceProvider # trailing\n");
+
+        System.setProperty(FACTORY_ID, "org.acme.PropertyProvider");
+        try {
+            ProviderResolver.Provider provider = resolver.resolve(FACTORY_ID, loader);
+            assertEquals("org.acme.PropertyProvider", provider.getClassName());
+            assertEquals(ResolutionSource.SYSTEM_PROPERTY, provider.getSource());
+        } finally {
+            System.clearProperty(FACTORY_ID);
+        }
+
+        ProviderResolver.Provider provider = resolver.resolve(FACTORY_ID, loader);
+        assertEquals("org.acme.ServiceProvider", provider.getClassName());
+        assertEquals(ResolutionSource.SERVICES, provider.getSource());
+        assertSame(loader, provider.getClassLoader());
+
+        assertNull(resolver.resolve(FACTORY_ID, new ServicesClassLoader(null)));
+    }
+
+    @Test
+    public void testServicesFallbacks() {
+        ClassLoader loader = new ServicesClassLoader(null);
+        ClassLoader fallback = new ServicesClassLoader("org.acme.FallbackProvider\n");
+        assertNull("Expected only the given class loader to be used",
+                   new ProviderResolver(ProviderResolver.SERVICES).resolve(FACTORY_ID, loader));
+
+        ProviderResolver.Provider provider = new ProviderResolver(ProviderResolver.services(fallback)).resolve(FACTORY_ID, loader);
+        assertEquals("org.acme.FallbackProvider", provider.getClassName());
+        assertSame(fallback, provider.getClassLoader());
+    }
+
+    @Test
+    public void testCacheInvalidatedOnRegistration() {
+        final AtomicInteger calls = new AtomicInteger();
+        ProviderResolver resolver = new ProviderResolver(new ProviderResolver.Step() {
+            public ProviderResolver.Provider find(String factoryId, ClassLoader loader) {
+                calls.incrementAndGet();
+                return null;
+            }
+        });
+        ClassLoader loader = getClass().getClassLoader();
+        assertNull(resolver.resolve(FACTORY_ID, loader));
+        assertNull(resolver.resolve(FACTORY_ID, loader));
+        assertEquals("Expected the miss to be cached", 1, calls.get());
+
+        Callable<Class> callable = new MockCallable();
+        OsgiLocator.register("OtherFactory", callable);
+        OsgiLocator.unregister("OtherFactory", callable);
+        assertNull(resolver.resolve(FACTORY_ID, loader));
+        assertEquals("Expected the cache to be dropped", 2, calls.get());
+    }
+
+    @Test
+    public void testCacheDoesNotRetainClassLoaders() throws Exception {
+        ProviderResolver resolver = new ProviderResolver(ProviderResolver.SERVICES);
+        ClassLoader loader = new ServicesClassLoader("org.acme.ServiceProvider\n");
+        assertSame(loader, resolver.resolve(FACTORY_ID, loader).getClassLoader());
+        assertSame("Expected the cached provider", loader, resolver.resolve(FACTORY_ID, loader).getClassLoader());
+
+        WeakReference<ClassLoader> ref = new WeakReference<ClassLoader>(loader);
+        loader = null;
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull("Expected the class loader to be collected", ref.get());
+    }
+
+    private static class ServicesClassLoader extends ClassLoader {
+        private final String content;
+
+        ServicesClassLoader(String content) {
+            super(null);
+            this.content = content;
+        }
+
+        @Override
+        public InputStream getResourceAsStream(String name) {
+            if (content != null && name.equals("META-INF/services/" + FACTORY_ID)) {
+                try {
+                    return new ByteArrayInputStream(content.getBytes("UTF-8"));
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return null;
+        }
+    }
+
+}
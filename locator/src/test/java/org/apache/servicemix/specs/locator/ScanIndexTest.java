@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ScanIndexTest extends Assert {
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        File file = File.createTempFile("scan", ".idx");
+        file.deleteOnExit();
+        Map<String, String> providers = new HashMap<String, String>();
+        providers.put("javax.xml.stream.XMLInputFactory", "com.ctc.wstx.stax.WstxInputFactory");
+        providers.put("javax.xml.stream.XMLOutputFactory", "com.ctc.wstx.stax.WstxOutputFactory");
+
+        ScanIndex index = new ScanIndex(file);
+        index.put(12, "1000", providers);
+        index.put(13, "2000", Collections.<String, String>emptyMap());
+        index.save();
+
+        index = new ScanIndex(file);
+        index.load();
+        assertEquals(providers, index.get(12, "1000"));
+        assertEquals(Collections.<String, String>emptyMap(), index.get(13, "2000"));
+        assertNull("Bundle has been updated", index.get(12, "1001"));
+        assertNull("Bundle is not indexed", index.get(14, "1000"));
+
+        index.retain(Arrays.asList(13L));
+        index.save();
+        index = new ScanIndex(file);
+        index.load();
+        assertNull(index.get(12, "1000"));
+        assertNotNull(index.get(13, "2000"));
+    }
+
+    @Test
+    public void testFragmentsChangeTheStamp() throws Exception {
+        File file = File.createTempFile("scan", ".idx");
+        file.deleteOnExit();
+        ScanIndex index = new ScanIndex(file);
+        index.put(12, "1000", Collections.<String, String>emptyMap());
+        index.put(13, "1000+20:3000", Collections.singletonMap("a", "b"));
+        index.save();
+
+        index = new ScanIndex(file);
+        index.load();
+        assertNull("A fragment has been attached", index.get(12, "1000+20:3000"));
+        assertEquals(Collections.singletonMap("a", "b"), index.get(13, "1000+20:3000"));
+        assertNull("The fragment has been updated", index.get(13, "1000+20:3001"));
+    }
+
+    @Test
+    public void testCorruptedIndex() throws Exception {
+        File file = File.createTempFile("scan", ".idx");
+        file.deleteOnExit();
+        FileOutputStream os = new FileOutputStream(file);
+        os.write("garbage\n12 1000 a b\n".getBytes("UTF-8"));
+        os.close();
+
+        ScanIndex index = new ScanIndex(file);
+        index.load();
+        assertNull(index.get(12, "1000"));
+    }
+
+}
@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.servicemix.specs.locator;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.ServiceReference;
+
+public class SharedRegistryTest extends Assert {
+
+    @Test
+    public void testOldestRegistryOwnsTheSharedOne() throws Exception {
+        MockBundleContext a = new MockBundleContext(new MockBundle(1), null);
+        MockBundleContext b = a.sibling(new MockBundle(2));
+        final AtomicInteger takeOvers = new AtomicInteger();
+        Runnable takeOver = new Runnable() {
+            public void run() {
+                takeOvers.incrementAndGet();
+            }
+        };
+        SharedRegistry ra = new SharedRegistry(a.getBundleContext(), takeOver);
+        SharedRegistry rb = new SharedRegistry(b.getBundleContext(), takeOver);
+        try {
+            assertFalse("Expected the first bundle to own the registry", ra.open());
+            assertTrue("Expected the second bundle to use the registry of the first one", rb.open());
+            assertTrue(rb.isConsuming());
+            List<ServiceReference> refs = a.getServices(Map.class.getName());
+            assertEquals("Expected the losing claim to be withdrawn", 1, refs.size());
+            assertSame(a.getBundleContext().getBundle(), refs.get(0).getBundle());
+            assertEquals("Did not expect the registry to be ready before the scan",
+                         Boolean.FALSE, refs.get(0).getProperty(SharedRegistry.READY_PROPERTY));
+
+            ra.publish();
+            assertEquals(Boolean.TRUE, refs.get(0).getProperty(SharedRegistry.READY_PROPERTY));
+
+            ra.close();
+            assertEquals("Expected the second bundle to take over", 1, takeOvers.get());
+            assertFalse(rb.isConsuming());
+            refs = b.getServices(Map.class.getName());
+            assertEquals(1, refs.size());
+            assertSame(b.getBundleContext().getBundle(), refs.get(0).getBundle());
+            rb.publish();
+            assertEquals(Boolean.TRUE, refs.get(0).getProperty(SharedRegistry.READY_PROPERTY));
+        } finally {
+            ra.close();
+            rb.close();
+        }
+        assertTrue(a.getServices(Map.class.getName()).isEmpty());
+    }
+
+    @Test
+    public void testLookupsWaitForTheOwnerScan() throws Exception {
+        System.setProperty(OsgiLocator.TIMEOUT, "0");
+        OsgiLocator.refreshConfiguration();
+        MockBundleContext a = new MockBundleContext(new MockBundle(1), null);
+        MockBundleContext b = a.sibling(new MockBundle(2));
+        final SharedRegistry ra = new SharedRegistry(a.getBundleContext(), null);
+        SharedRegistry rb = new SharedRegistry(b.getBundleContext(), null);
+        final MockCallable callable = new MockCallable();
+        try {
+            assertFalse(ra.open());
+            assertTrue(rb.open());
+            Thread scan = new Thread() {
+                public void run() {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        // publish anyway
+                    }
+                    OsgiLocator.register("SharedFactory", callable);
+                    ra.publish();
+                }
+            };
+            scan.start();
+            assertEquals("Expected the lookup to wait for the scan",
+                         MockCallable.class, OsgiLocator.locate(Object.class, "SharedFactory"));
+            scan.join();
+        } finally {
+            rb.close();
+            ra.close();
+            OsgiLocator.unregister("SharedFactory", callable);
+        }
+    }
+
+}
@@ -60,7 +60,7 @@ class FactoryFinder {
                 }
                 factory = classloader.loadClass(factoryClassName);
             }
-            return factory.newInstance();
+            return org.apache.servicemix.specs.locator.Instantiator.newInstance(factory);
         } catch (ClassNotFoundException classnotfoundexception) {
             throw new SOAPException(
                     "Provider " + factoryClassName + " not found",
@@ -114,27 +114,29 @@ class FactoryFinder {
                        Class factoryClass,
                        String defaultFactoryClassName) throws SOAPException {
         
-        try {
-            // If we are deployed into an OSGi environment, leverage it
-            if (factoryClass == null) {
-                String factoryClassName = factoryPropertyName;
-                if (factoryPropertyName.equals("javax.xml.soap.MetaFactory")) {
-                    //this is an exception that the factoryPropertyName isn't
-                    //the actual factory class name, there is no class
-                    //javax.xml.soap.MetaFactory at all
-                    factoryClassName = "javax.xml.soap.SAAJMetaFactory";
+        if (org.apache.servicemix.specs.locator.OsgiLocator.isActive()) {
+            try {
+                // If we are deployed into an OSGi environment, leverage it
+                if (factoryClass == null) {
+                    String factoryClassName = factoryPropertyName;
+                    if (factoryPropertyName.equals("javax.xml.soap.MetaFactory")) {
+                        //this is an exception that the factoryPropertyName isn't
+                        //the actual factory class name, there is no class
+                        //javax.xml.soap.MetaFactory at all
+                        factoryClassName = "javax.xml.soap.SAAJMetaFactory";
+                    }
+                    ClassLoader cl = FactoryFinder.class.getClassLoader();
+                    if (cl == null) {
+                        cl = Thread.currentThread().getContextClassLoader();
+                    }
+                    factoryClass = cl.loadClass(factoryClassName);
                 }
-                ClassLoader cl = FactoryFinder.class.getClassLoader();
-                if (cl == null) {
-                    cl = Thread.currentThread().getContextClassLoader();
+                Class spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(factoryClass, factoryPropertyName);
+                if (spiClass != null) {
+                    return org.apache.servicemix.specs.locator.Instantiator.newInstance(spiClass);
                 }
-                factoryClass = cl.loadClass(factoryClassName);
-            }
-            Class spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(factoryClass, factoryPropertyName);
-            if (spiClass != null) {
-                return spiClass.newInstance();
+            } catch (Throwable e) {
             }
-        } catch (Throwable e) {
         }
 
         try {
@@ -45,7 +45,7 @@ public class ScriptEngineManager {
 				for (String className : getClassNames(url)) {
                     try {
                         Class factoryClass = classLoader.loadClass(className);
-                        Object object = factoryClass.newInstance();
+                        Object object = org.apache.servicemix.specs.locator.Instantiator.newInstance(factoryClass);
                         if (object instanceof ScriptEngineFactory) {
                             ScriptEngineFactory factory = (ScriptEngineFactory) object;
                             for (String name : factory.getNames()) {
@@ -95,10 +95,10 @@ public class ScriptEngineManager {
 
     public ScriptEngine getEngineByName(String shortName) {
 		ScriptEngineFactory factory = null;
-        List<Class<? extends ScriptEngineFactory>> factoryClasses = org.apache.servicemix.specs.locator.OsgiLocator.locateAll(javax.script.ScriptEngineFactory.class);
+        List<Class<? extends ScriptEngineFactory>> factoryClasses = locateFactories();
         for (Class<? extends ScriptEngineFactory> factoryClass : factoryClasses) {
 			try {
-				ScriptEngineFactory f = factoryClass.newInstance();
+				ScriptEngineFactory f = org.apache.servicemix.specs.locator.Instantiator.newInstance(factoryClass);
 				if (f.getNames().contains(shortName)) {
 					factory = f;
 					break;
@@ -123,10 +123,10 @@ public class ScriptEngineManager {
 
     public ScriptEngine getEngineByExtension(String extension) {
 		ScriptEngineFactory factory = null;
-        List<Class<? extends ScriptEngineFactory>> factoryClasses = org.apache.servicemix.specs.locator.OsgiLocator.locateAll(javax.script.ScriptEngineFactory.class);
+        List<Class<? extends ScriptEngineFactory>> factoryClasses = locateFactories();
         for (Class<? extends ScriptEngineFactory> factoryClass : factoryClasses) {
 			try {
-				ScriptEngineFactory f = factoryClass.newInstance();
+				ScriptEngineFactory f = org.apache.servicemix.specs.locator.Instantiator.newInstance(factoryClass);
 				if (f.getExtensions().contains(extension)) {
 					factory = f;
 					break;
@@ -151,10 +151,10 @@ public class ScriptEngineManager {
 
     public ScriptEngine getEngineByMimeType(String mimeType) {
 		ScriptEngineFactory factory = null;
-        List<Class<? extends ScriptEngineFactory>> factoryClasses = org.apache.servicemix.specs.locator.OsgiLocator.locateAll(javax.script.ScriptEngineFactory.class);
+        List<Class<? extends ScriptEngineFactory>> factoryClasses = locateFactories();
         for (Class<? extends ScriptEngineFactory> factoryClass : factoryClasses) {
 			try {
-				ScriptEngineFactory f = factoryClass.newInstance();
+				ScriptEngineFactory f = org.apache.servicemix.specs.locator.Instantiator.newInstance(factoryClass);
 				if (f.getMimeTypes().contains(mimeType)) {
 					factory = f;
 					break;
@@ -179,10 +179,10 @@ public class ScriptEngineManager {
 
     public List<ScriptEngineFactory> getEngineFactories() {
         List<ScriptEngineFactory> factories = new ArrayList();
-        List<Class<? extends ScriptEngineFactory>> factoryClasses = org.apache.servicemix.specs.locator.OsgiLocator.locateAll(javax.script.ScriptEngineFactory.class);
+        List<Class<? extends ScriptEngineFactory>> factoryClasses = locateFactories();
         for (Class<? extends ScriptEngineFactory> factoryClass : factoryClasses) {
 			try {
-				factories.add((ScriptEngineFactory) factoryClass.newInstance());
+				factories.add((ScriptEngineFactory) org.apache.servicemix.specs.locator.Instantiator.newInstance(factoryClass));
 			} catch (Throwable doNothing) {
 			}
 		}
@@ -219,4 +219,11 @@ public class ScriptEngineManager {
         return stack;
     }
 
+    private List<Class<? extends ScriptEngineFactory>> locateFactories() {
+        if (!org.apache.servicemix.specs.locator.OsgiLocator.isActive()) {
+            return Collections.emptyList();
+        }
+        return org.apache.servicemix.specs.locator.OsgiLocator.locateAll(javax.script.ScriptEngineFactory.class);
+    }
+
 }
\ No newline at end of file
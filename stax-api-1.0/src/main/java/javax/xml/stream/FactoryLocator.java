@@ -16,14 +16,7 @@
  */
 package javax.xml.stream;
 
-import java.io.InputStream;
-import java.io.File;
-import java.io.FileInputStream;
-
 import java.util.Arrays;
-import java.util.Properties;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 
 /*
  * Here is the beef on the finding the Factory Class
@@ -43,6 +36,12 @@ import java.io.InputStreamReader;
  */
 
 class FactoryLocator {
+    private static final org.apache.servicemix.specs.locator.ProviderResolver resolver =
+        new org.apache.servicemix.specs.locator.ProviderResolver(
+            org.apache.servicemix.specs.locator.ProviderResolver.SYSTEM_PROPERTY,
+            org.apache.servicemix.specs.locator.ProviderResolver.propertiesFile("stax.properties"),
+            org.apache.servicemix.specs.locator.ProviderResolver.SERVICES);
+
 	static Object locate(String factoryId) throws FactoryConfigurationError {
 		return locate(factoryId, null);
 	}
@@ -55,69 +54,34 @@ class FactoryLocator {
 
 	static Object locate(String factoryId, String[] altClassName,
                          ClassLoader classLoader) throws FactoryConfigurationError {
-        try {
-            // If we are deployed into an OSGi environment, leverage it
-            ClassLoader cl = FactoryLocator.class.getClassLoader();
-            if (cl == null) {
-                cl = ClassLoader.getSystemClassLoader();
-            }
-            Class factoryClass = cl.loadClass(factoryId);
-            Class spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(factoryClass, factoryId);
-            if (spiClass != null) {
-                return spiClass.newInstance();
+        if (org.apache.servicemix.specs.locator.OsgiLocator.isActive()) {
+            try {
+                // If we are deployed into an OSGi environment, leverage it
+                ClassLoader cl = FactoryLocator.class.getClassLoader();
+                if (cl == null) {
+                    cl = ClassLoader.getSystemClassLoader();
+                }
+                Class factoryClass = cl.loadClass(factoryId);
+                Class spiClass = org.apache.servicemix.specs.locator.OsgiLocator.locate(factoryClass, factoryId);
+                if (spiClass != null) {
+                    // never shared: input and output factories are configured through
+                    // setProperty and XMLEventFactory.setLocation applies to later events
+                    return org.apache.servicemix.specs.locator.Instantiator.newInstance(spiClass);
+                }
+            } catch (Throwable e) {
             }
-        } catch (Throwable e) {
         }
 
-        try {
-			String prop = System.getProperty(factoryId);
-			if (prop != null) {
-				return loadFactory(prop, classLoader);
-			}
-		} catch (Exception e) {
-		}
-
-		try {
-			String configFile = System.getProperty("java.home")
-					+ File.separator + "lib" + File.separator
-					+ "stax.properties";
-			File f = new File(configFile);
-			if (f.exists()) {
-				Properties props = new Properties();
-				props.load(new FileInputStream(f));
-				String factoryClassName = props.getProperty(factoryId);
-				return loadFactory(factoryClassName, classLoader);
-			}
-		} catch (Exception e) {
-		}
-
-		String serviceId = "META-INF/services/" + factoryId;
-		try {
-			InputStream is = null;
-
-			if (classLoader == null) {
-				is = ClassLoader.getSystemResourceAsStream(serviceId);
-			} else {
-				is = classLoader.getResourceAsStream(serviceId);
-			}
-
-			if (is != null) {
-				BufferedReader br = new BufferedReader(new InputStreamReader(
-						is, "UTF-8"));
-				String factoryClassName = br.readLine();
-				br.close();
-
-				if (factoryClassName != null && !"".equals(factoryClassName)) {
-					return loadFactory(factoryClassName, classLoader);
-				}
-			}
-		} catch (Exception ex) {
-		}
+        org.apache.servicemix.specs.locator.ProviderResolver.Provider provider = resolver.resolve(factoryId, classLoader);
+        if (provider != null) {
+            return loadFactory(provider.getClassName(), provider.getClassLoader());
+        }
 
 		if (altClassName == null) {
 			throw new FactoryConfigurationError("Unable to locate factory for "
 					+ factoryId + ".", null);
 		}
+		org.apache.servicemix.specs.locator.LocatorStatistics.recordResolution(factoryId, org.apache.servicemix.specs.locator.ResolutionSource.FALLBACK);
 		return loadFactory(altClassName, classLoader);
 	}
 
@@ -128,7 +92,7 @@ class FactoryLocator {
                 Class factoryClass = classLoader == null ? Class.forName(className)
                         : classLoader.loadClass(className);
 
-                return factoryClass.newInstance();
+                return org.apache.servicemix.specs.locator.Instantiator.newInstance(factoryClass);
             } catch (Exception x) {
             }
         }
@@ -143,7 +107,7 @@ class FactoryLocator {
 			Class factoryClass = classLoader == null ? Class.forName(className)
 					: classLoader.loadClass(className);
 
-			return factoryClass.newInstance();
+			return org.apache.servicemix.specs.locator.Instantiator.newInstance(factoryClass);
 		} catch (ClassNotFoundException x) {
 			throw new FactoryConfigurationError("Requested factory "
 					+ className + " cannot be located.  Classloader ="